@@ -0,0 +1,289 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the operations of a {@link DiskLruCache} on a small pool of I/O
+ * threads, so that callers can go on with other work, such as downloading or
+ * decoding, meanwhile.
+ *
+ * <p>Each operation returns a {@link Future}, and reports its outcome to an
+ * optional {@link Callback} on the I/O thread that ran it. Reads run before the
+ * writes and removals that are still queued, as a caller is usually waiting for
+ * them, and prefetches run last; otherwise operations start in the order they
+ * were submitted.
+ *
+ * <p>This class doesn't own the cache: shutting it down leaves the cache open,
+ * and operations still queued when the cache is closed fail.
+ */
+public final class AsyncDiskLruCache {
+    /** Receives the outcome of an operation, on the I/O thread that ran it. */
+    public interface Callback<V> {
+        void onSuccess(V result);
+
+        void onFailure(Exception e);
+    }
+
+    /** Writes the values of an entry being edited. */
+    public interface ValueWriter {
+        /**
+         * Writes the values to {@code editor}. The edit is committed once this
+         * returns, and aborted if this throws.
+         */
+        void write(DiskLruCache.Editor editor) throws IOException;
+    }
+
+    /** Runs several operations on the cache in a row, on one I/O thread. */
+    public interface Batch<V> {
+        V run(DiskLruCache cache) throws IOException;
+    }
+
+    private static final int PRIORITY_READ = 0;
+    private static final int PRIORITY_WRITE = 1;
+    private static final int PRIORITY_PREFETCH = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final DiskLruCache cache;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong submissions = new AtomicLong();
+
+    /**
+     * @param cache the cache to run operations on
+     * @param threadCount the maximum number of operations to run at a time
+     */
+    public AsyncDiskLruCache(DiskLruCache cache, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount <= 0");
+        }
+        this.cache = cache;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        executor.prestartAllCoreThreads();
+    }
+
+    public DiskLruCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Looks up the entry named {@code key}; see {@link DiskLruCache#get}. The
+     * result is a snapshot that the caller must close, or null.
+     */
+    public Future<DiskLruCache.Snapshot> get(final String key,
+            Callback<DiskLruCache.Snapshot> callback) {
+        return submit(PRIORITY_READ, new Callable<DiskLruCache.Snapshot>() {
+            @Override public DiskLruCache.Snapshot call() throws IOException {
+                return cache.get(key);
+            }
+        }, callback);
+    }
+
+    /**
+     * Looks up the entries named by {@code keys}; see
+     * {@link DiskLruCache#getAll}. The caller must close the snapshots.
+     */
+    public Future<Map<String, DiskLruCache.Snapshot>> getAll(final Collection<String> keys,
+            Callback<Map<String, DiskLruCache.Snapshot>> callback) {
+        return submit(PRIORITY_READ, new Callable<Map<String, DiskLruCache.Snapshot>>() {
+            @Override public Map<String, DiskLruCache.Snapshot> call() throws IOException {
+                return cache.getAll(keys);
+            }
+        }, callback);
+    }
+
+    /**
+     * Reads the values of the entries named by {@code keys} ahead of their
+     * use, once nothing else is queued; see {@link DiskLruCache#prefetch}.
+     */
+    public Future<Void> prefetch(final Collection<String> keys) {
+        return submit(PRIORITY_PREFETCH, new Callable<Void>() {
+            @Override public Void call() {
+                cache.prefetch(keys);
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Edits the entry named {@code key}, writes its values with {@code writer}
+     * and commits them. The result is false if another edit of the entry was
+     * in progress.
+     */
+    public Future<Boolean> put(String key, ValueWriter writer, Callback<Boolean> callback) {
+        return put(key, writer, true, callback);
+    }
+
+    /**
+     * Like {@link #put}, but only writes the entry if it isn't readable
+     * already. The result is false if it was, or if it was being edited.
+     */
+    public Future<Boolean> putIfAbsent(String key, ValueWriter writer, Callback<Boolean> callback) {
+        return put(key, writer, false, callback);
+    }
+
+    private Future<Boolean> put(final String key, final ValueWriter writer,
+            final boolean replace, Callback<Boolean> callback) {
+        return submit(PRIORITY_WRITE, new Callable<Boolean>() {
+            @Override public Boolean call() throws IOException {
+                if (!replace && cache.contains(key)) {
+                    return false; // without journaling a read of it
+                }
+                DiskLruCache.Editor editor = cache.edit(key);
+                if (editor == null) {
+                    return false;
+                }
+                try {
+                    writer.write(editor);
+                } catch (IOException e) {
+                    editor.abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    editor.abort();
+                    throw e;
+                }
+                editor.commit();
+                return true;
+            }
+        }, callback);
+    }
+
+    /**
+     * Removes the entry named {@code key}; see {@link DiskLruCache#remove}.
+     * The result is true if an entry was removed.
+     */
+    public Future<Boolean> remove(final String key, Callback<Boolean> callback) {
+        return submit(PRIORITY_WRITE, new Callable<Boolean>() {
+            @Override public Boolean call() throws IOException {
+                return cache.remove(key);
+            }
+        }, callback);
+    }
+
+    /**
+     * Removes the entries named by {@code keys}; see
+     * {@link DiskLruCache#removeAll}. The result is the number removed.
+     */
+    public Future<Integer> removeAll(final Collection<String> keys, Callback<Integer> callback) {
+        return submit(PRIORITY_WRITE, new Callable<Integer>() {
+            @Override public Integer call() throws IOException {
+                return cache.removeAll(keys);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs {@code batch} on an I/O thread, queued with the writes and
+     * removals. The result is what the batch returns.
+     */
+    public <V> Future<V> runBatch(final Batch<V> batch, Callback<V> callback) {
+        return submit(PRIORITY_WRITE, new Callable<V>() {
+            @Override public V call() throws IOException {
+                return batch.run(cache);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs {@code batch} on an I/O thread once nothing else is queued, like a
+     * prefetch. The result is what the batch returns.
+     */
+    public <V> Future<V> runBatchWhenIdle(final Batch<V> batch, Callback<V> callback) {
+        return submit(PRIORITY_PREFETCH, new Callable<V>() {
+            @Override public V call() throws IOException {
+                return batch.run(cache);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs the operations already submitted, and returns once they are done.
+     * Operations submitted afterwards are rejected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        awaitTermination();
+    }
+
+    /**
+     * Cancels the operations that haven't started, and returns once the
+     * running ones are done. Operations submitted afterwards are rejected.
+     */
+    public void shutdownNow() {
+        for (Runnable queued : executor.shutdownNow()) {
+            ((Operation<?>) queued).cancel(false);
+        }
+        awaitTermination();
+    }
+
+    private void awaitTermination() {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <V> Future<V> submit(int priority, Callable<V> callable, Callback<V> callback) {
+        Operation<V> operation = new Operation<V>(priority, submissions.getAndIncrement(),
+                callable, callback);
+        // operations handed to a thread being started skip the queue, and its
+        // priorities; restart threads that timed out so that none does
+        executor.prestartAllCoreThreads();
+        executor.execute(operation);
+        return operation;
+    }
+
+    /** An operation queued by priority, then by the order of submission. */
+    private static final class Operation<V> extends FutureTask<V>
+            implements Comparable<Operation<?>> {
+        private final int priority;
+        private final long submission;
+        private final Callback<V> callback;
+
+        private Operation(int priority, long submission, Callable<V> callable,
+                Callback<V> callback) {
+            super(callable);
+            this.priority = priority;
+            this.submission = submission;
+            this.callback = callback;
+        }
+
+        @Override protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            V result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                callback.onFailure((Exception) cause);
+                return;
+            } catch (InterruptedException e) {
+                throw new AssertionError(e); // done, so get() doesn't wait
+            }
+            callback.onSuccess(result);
+        }
+
+        @Override public int compareTo(Operation<?> other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return submission < other.submission ? -1 : (submission == other.submission ? 0 : 1);
+        }
+    }
+}
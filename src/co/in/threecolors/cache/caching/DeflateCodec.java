@@ -0,0 +1,171 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values of a {@link DiskLruCache} with deflate, in the zlib
+ * format.
+ *
+ * <p>A preset dictionary holding strings that values commonly contain, such
+ * as the field names of serialized objects, lets even small values compress
+ * well. zlib records the checksum of the dictionary in each value, so values
+ * compressed with another dictionary fail to read rather than reading wrong.
+ */
+final class DeflateCodec implements DiskLruCache.Codec {
+    static final int ID = 1;
+
+    private static final int BUFFER_SIZE = 512;
+
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    /**
+     * @param dictionary the preset dictionary, or null for none
+     */
+    DeflateCodec(byte[] dictionary) {
+        this.dictionary = dictionary != null ? dictionary.clone() : null;
+        if (dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(dictionary);
+            this.dictionaryId = (int) adler.getValue();
+        } else {
+            this.dictionaryId = 0;
+        }
+    }
+
+    @Override public int id() {
+        return ID;
+    }
+
+    @Override public OutputStream encode(OutputStream out) {
+        Deflater deflater = new Deflater();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return new DeflatingOutputStream(out, deflater);
+    }
+
+    @Override public InputStream decode(InputStream in) {
+        return new InflatingInputStream(in);
+    }
+
+    /** Releases the deflater once the value is complete. */
+    private static final class DeflatingOutputStream extends DeflaterOutputStream {
+        private boolean closed;
+
+        private DeflatingOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, BUFFER_SIZE);
+        }
+
+        @Override public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Inflates a value, supplying the preset dictionary when it was
+     * compressed with one.
+     */
+    private final class InflatingInputStream extends FilterInputStream {
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private boolean closed;
+
+        private InflatingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int count = inflater.inflate(b, offset, length);
+                    if (count > 0) {
+                        return count;
+                    }
+                    if (inflater.finished()) {
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null || inflater.getAdler() != dictionaryId) {
+                            throw new IOException(
+                                    "the value was compressed with another dictionary");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        int read = in.read(buffer, 0, buffer.length);
+                        if (read == -1) {
+                            throw new EOFException("the compressed value was truncated");
+                        }
+                        inflater.setInput(buffer, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("the compressed value is corrupt: " + e.getMessage());
+            }
+        }
+
+        @Override public long skip(long count) throws IOException {
+            long skipped = 0;
+            byte[] scratch = new byte[BUFFER_SIZE];
+            while (skipped < count) {
+                int read = read(scratch, 0, (int) Math.min(scratch.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override public int available() {
+            return closed || inflater.finished() ? 0 : 1;
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+
+        @Override public void mark(int readLimit) {
+        }
+
+        @Override public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inflater.end();
+                in.close();
+            }
+        }
+    }
+}
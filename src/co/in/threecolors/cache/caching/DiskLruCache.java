@@ -17,35 +17,55 @@
 package co.in.threecolors.cache.caching;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  ******************************************************************************
@@ -71,6 +91,10 @@ import java.util.concurrent.TimeUnit;
  * not strict: the cache may temporarily exceed it while waiting for files to be
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
+ * Eviction starts once the size passes a high watermark and goes on, a batch
+ * at a time and at a bounded rate, until it falls to a low watermark; commits
+ * only wait for it when the size passes a hard ceiling (see
+ * {@link Params#evictionHighWatermark}).
  *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
@@ -91,6 +115,60 @@ import java.util.concurrent.TimeUnit;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  *
+ * <p>A cache may optionally be opened with several <strong>segments</strong>
+ * (see {@link Params#segmentCount}). Keys are then hashed into
+ * independent sub-caches, each with its own LRU order, size accounting,
+ * journal and lock, so that operations on keys in different segments do not
+ * contend with each other. The {@link Snapshot} and {@link Editor} API is the
+ * same in both modes; eviction is done per segment, so the LRU order is only
+ * approximated across the whole cache.
+ *
+ * <p>Values are normally stored one file per value. A cache may instead be
+ * opened with <strong>packed</strong> storage (see {@link Params#packedStorage}),
+ * which appends values to a few large pack files and compacts them in the
+ * background. This suits caches of many small values, such as thumbnails,
+ * where per-file overhead dominates.
+ *
+ * <p>A cache opened with {@link Params#readOptimized} serves reads of
+ * readable entries without taking its lock. Such reads set an access bit on
+ * the entry instead of reordering the LRU queue, and their READ records are
+ * buffered and journaled in batches. Eviction then sweeps the queue like a
+ * clock, giving entries that were read since the last sweep a second chance.
+ *
+ * <p>With {@link Params#shardedLayout}, the files of the entries are spread
+ * over 256 subdirectories by a hash of their key, two levels deep, which keeps
+ * directories small enough to be searched and listed quickly on filesystems
+ * such as FAT. Opening a cache with a different layout moves its files.
+ *
+ * <p>While an entry is being edited, {@link #tail} lets other callers read
+ * the values as they are written, blocking for more until the edit is
+ * committed. Callers wanting the same value thus need not produce it twice.
+ *
+ * <p>An edit may also set a string of metadata on its entry and a time at
+ * which the entry expires; both are recorded in the journal. Expired entries
+ * are no longer returned by {@link #get} and are removed by the background
+ * thread.
+ *
+ * <p>Values may be stored encoded by a {@link Codec}, such as {@link #DEFLATE}
+ * (see {@link Params#codec}). Each entry records the codec it was written
+ * with in the journal, and its streams encode and decode values
+ * transparently; sizes and lengths are those of the stored bytes.
+ *
+ * <p>Which entries are evicted is up to the cache's {@link EvictionPolicy}.
+ * The default evicts the least recently used entries; {@link #TINY_LFU}
+ * also weighs how often entries were used recently.
+ *
+ * <p>Journal records may be committed to the filesystem in groups (see
+ * {@link Params#journalCommitWindowMillis}). Callers that need an edit to be
+ * recorded before going on can wait on the {@link CommitTicket} returned by
+ * {@link Editor#commit}.
+ *
+ * <p>How much of the cache survives a crash of the device is up to its
+ * durability (see {@link Params#durability}), from syncing nothing to
+ * syncing every commit. When a cache wasn't closed, the lengths of its values
+ * are checked against the journal on open, and entries that don't match are
+ * dropped.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -100,17 +178,71 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String CHECKPOINT_FILE = "journal.ckpt";
+    static final String CHECKPOINT_FILE_TMP = "journal.ckpt.tmp";
+    static final String SEGMENT_DIR_PREFIX = "segment";
+    static final String MIGRATION_DIR = "migrating";
+    static final String SHARDED_LAYOUT_FILE = "sharded";
+    static final String CLEAN_SHUTDOWN_FILE = "journal.closed";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final int BINARY_MAGIC = 0xD15CCAC4;
+    static final int BINARY_VERSION_1 = 1;
+    static final int CHECKPOINT_MAGIC = 0xD15CC4EC;
+    static final int CHECKPOINT_VERSION_3 = 3;
     static final long ANY_SEQUENCE_NUMBER = -1;
+    /** How long to wait before retrying to rebuild a journal after a failed commit. */
+    private static final long JOURNAL_RECOVERY_RETRY_MILLIS = 1000;
+
+    /**
+     * Nothing is synced to the storage device, so a crash of the device may
+     * lose recent commits, or leave entries whose values are truncated. Such
+     * entries are dropped when the cache is next opened. This is the default.
+     */
+    public static final int DURABILITY_NONE = 0;
+    /**
+     * Commits return once their journal records are synced, but values are
+     * not synced; after a crash, entries whose values were lost are dropped.
+     */
+    public static final int DURABILITY_JOURNAL_ONLY = 1;
+    /** Commits return once their values and journal records are synced. */
+    public static final int DURABILITY_FULL_FSYNC = 2;
+    /**
+     * Values and journal records are synced in the background, at most
+     * {@link Params#syncIntervalMillis} after they were committed.
+     */
+    public static final int DURABILITY_PERIODIC = 3;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /* Binary journal record opcodes. */
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+    private static final int OP_CLEAN_PACKED = 5;
+    private static final int OP_META = 6;
+    private static final int OP_CODEC = 7;
+    /** Set on an opcode whose key is stored literally rather than as a digest. */
+    private static final int OP_LITERAL_KEY = 0x80;
+    private static final int KEY_DIGEST_LENGTH = 16;
+    private static final int MAX_METADATA_LENGTH = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /** Shards form two levels of 16 directories each. */
+    private static final int SHARD_COUNT = 256;
+    private static final int MAX_WALK_THREADS = 4;
+    /** The most entries evicted with one hold of the lock. */
+    private static final int EVICTION_BATCH_SIZE = 32;
+    /** The most entries copied from a previous cache before other background work runs. */
+    private static final int MIGRATION_BATCH_SIZE = 64;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -149,20 +281,143 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The text format above is only read, to migrate existing caches. Journals
+     * are written in an equivalent binary format instead, which is smaller and
+     * needs no string parsing to replay:
+     *     int     0xD15CCAC4 (magic)
+     *     byte    1 (binary journal version)
+     *     varint  application version
+     *     varint  value count
+     *     record*
+     *
+     * Each record is an opcode byte (CLEAN, DIRTY, REMOVE or READ) followed by
+     * the key. Keys that are 32 lowercase hex characters, such as the MD5
+     * hashes ObjectCache produces, are stored as their 16 byte digest; any
+     * other key sets the high bit of the opcode and is stored as a varint
+     * length followed by its UTF-8 bytes. CLEAN records are followed by one
+     * varint length per value. In a cache with packed storage, CLEAN_PACKED
+     * records take their place, with a varint length and a varint pack
+     * location per value. META records are followed by a varint expiry time
+     * in milliseconds (0 for none) and the metadata as a varint length and
+     * UTF-8 bytes; they follow the CLEAN record of an edit that set them.
+     * CODEC records are followed by the varint id of the codec the entry's
+     * values are encoded with, and follow the CLEAN record of an edit that
+     * changed it; entries without one aren't encoded.
+     * Varints are unsigned LEB128. A record cut short
+     * by a crash ends the replay and causes the journal to be rebuilt.
+     *
+     * Every CHECKPOINT_INTERVAL bytes of journal, and when the cache is closed,
+     * the index is also written to a checkpoint file named "journal.ckpt":
+     *     int     0xD15CC4EC (magic)
+     *     byte    3 (checkpoint version)
+     *     varint  application version
+     *     varint  value count
+     *     varint  length of the journal covered by this checkpoint
+     *     varint  next sequence number
+     *     varint  entry count
+     *     entry*  in access order, least recently used first
+     *     int     CRC32 of all the preceding bytes
+     *
+     * Each entry is a CLEAN, CLEAN_PACKED or DIRTY journal record followed by
+     * the entry's sequence number and the payloads of a META and a CODEC
+     * record. On open the checkpoint is loaded and only the journal written
+     * after it is replayed. Rebuilding the journal invalidates the checkpoint,
+     * so it is deleted before the new journal replaces the old.
+     *
+     * An empty file named "journal.closed" is created when the cache is
+     * closed, and deleted when it is opened. If it is missing on open, the
+     * cache may have crashed, so the lengths of the entries' files are checked
+     * against the journal.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
+    private final File cleanShutdownFile;
     private final int appVersion;
     private final long maxSize;
+    /** Eviction starts once the size passes this. */
+    private final long evictionHighWatermark;
+    /** Eviction goes on until the size falls to this. */
+    private final long evictionLowWatermark;
+    /** Commits wait for eviction while the size is above this. */
+    private final long evictionCeiling;
+    private boolean evictionPending;
+    /** True while the next batch of eviction waits to keep to the rate. */
+    private final AtomicBoolean evictionDelayed = new AtomicBoolean();
     private final int valueCount;
+    private final Params params;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private JournalWriter journalWriter;
+    /**
+     * The entries by the 128-bit form of their key. If the cache is
+     * read-optimized, reads don't take the lock to look entries up; the index
+     * is then kept in insertion order and serves as the eviction clock.
+     */
+    private final EntryIndex<Entry> lruEntries;
     private int redundantOpCount;
 
+    /** Serve reads of readable entries without taking the lock. */
+    private final boolean readOptimized;
+
+    /** Set once closing starts, for reads that don't take the lock. */
+    private volatile boolean closed;
+
+    private final EvictionPolicy evictionPolicy;
+
+    /** No entry expires before this time, so no sweep is due until then. */
+    private long nextExpiryMillis = Long.MAX_VALUE;
+    private boolean expirySweepPending;
+
+    /** Keys read without the lock whose READ records are yet to be journaled. */
+    private final ConcurrentLinkedQueue<String> bufferedReads;
+    private final AtomicInteger bufferedReadCount = new AtomicInteger();
+    private final AtomicBoolean readDrainPending = new AtomicBoolean();
+
+    /**
+     * True if the journal read on open was in the legacy text format or ended
+     * in a partial record, and must be rewritten before appending to it.
+     */
+    private boolean journalRebuildOnOpen;
+
+    /** True if the cache wasn't closed when it was last open. */
+    private boolean uncleanShutdown;
+
+    /**
+     * The files of values committed since the last periodic sync, or null if
+     * they are synced as they are committed or not at all.
+     */
+    private List<File> unsyncedFiles;
+    private boolean syncPending;
+
+    /** Incremented every time the journal is rebuilt. */
+    private long journalGeneration;
+    /** The journal length covered by the newest checkpoint. */
+    private long checkpointJournalLength;
+    private boolean checkpointPending;
+
+    /**
+     * The independent sub-caches of a segmented cache, or null if this cache
+     * stores its entries itself. A segmented cache holds no entries and no
+     * journal of its own; every operation is routed to the segment owning the
+     * key.
+     */
+    private final DiskLruCache[] segments;
+    private boolean segmentsClosed;
+
+    /** Copies the caches stored here before into this one, or null once done. */
+    private volatile Migration migration;
+
+    /** The pack files holding the values, or null if values are stored one file each. */
+    private final PackedValueStore packedValues;
+
+    /** The directories of the shards, or null if the cache isn't sharded. */
+    private final File[] shardDirectories;
+    private boolean compactionPending;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -256,14 +511,89 @@ public final class DiskLruCache implements Closeable {
         if (files == null) {
             throw new IllegalArgumentException("not a directory: " + dir);
         }
+        // subdirectories, such as segments and shards, are deleted in parallel
+        List<File> directories = new ArrayList<File>();
         for (File file : files) {
             if (file.isDirectory()) {
-                deleteContents(file);
-            }
-            if (!file.delete()) {
+                directories.add(file);
+            } else if (!file.delete()) {
                 throw new IOException("failed to delete file: " + file);
             }
         }
+        walkInParallel(directories, new DirectoryVisitor() {
+            @Override public void visit(File directory) throws IOException {
+                deleteRecursively(directory);
+            }
+        });
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteRecursively(file);
+                } else if (!file.delete()) {
+                    throw new IOException("failed to delete file: " + file);
+                }
+            }
+        }
+        if (!dir.delete()) {
+            throw new IOException("failed to delete file: " + dir);
+        }
+    }
+
+    /** Does something with a directory; see {@link #walkInParallel}. */
+    private interface DirectoryVisitor {
+        void visit(File directory) throws IOException;
+    }
+
+    /**
+     * Visits {@code directories} on a few threads, as most of the time goes
+     * into waiting for the filesystem, and returns once all were visited.
+     * Throws the first exception thrown by a visit.
+     */
+    private static void walkInParallel(List<File> directories, final DirectoryVisitor visitor)
+            throws IOException {
+        if (directories.size() <= 1) {
+            for (File directory : directories) {
+                visitor.visit(directory);
+            }
+            return;
+        }
+        ExecutorService walkers = Executors.newFixedThreadPool(
+                Math.min(MAX_WALK_THREADS, directories.size()));
+        try {
+            List<Future<Void>> visits = new ArrayList<Future<Void>>(directories.size());
+            for (final File directory : directories) {
+                visits.add(walkers.submit(new Callable<Void>() {
+                    @Override public Void call() throws IOException {
+                        visitor.visit(directory);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> visit : visits) {
+                try {
+                    visit.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause.toString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted walking " + directories);
+                }
+            }
+        } finally {
+            walkers.shutdownNow();
+        }
     }
 
     /** This cache uses a single background thread to evict entries. */
@@ -271,27 +601,132 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            boolean compact;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
+                compact = journalRebuildRequired();
+            }
+            if (compact) {
+                compactJournal();
+            }
+            return null;
+        }
+    };
+    /**
+     * Replaces a journal writer whose commit failed, and which rejects all
+     * records from then on, with a rebuilt journal. The entries in memory
+     * are complete, so nothing is lost but the failed commit's durability.
+     * Retried until it succeeds or the cache is closed.
+     */
+    private final Callable<Void> journalRecoveryCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null || !journalWriter.failed()) {
+                    return null; // closed, or rebuilt meanwhile
+                }
+                try {
                     rebuildJournal();
-                    redundantOpCount = 0;
+                } catch (IOException e) {
+                    JournalWriter.schedule(journalFailureListener,
+                            JOURNAL_RECOVERY_RETRY_MILLIS);
+                    throw e;
+                }
+            }
+            return null;
+        }
+    };
+    private final Runnable journalFailureListener = new Runnable() {
+        @Override public void run() {
+            executorService.submit(journalRecoveryCallable);
+        }
+    };
+    private final Callable<Void> evictionCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            evictBatch();
+            return null;
+        }
+    };
+    private final Callable<Void> readDrainCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                readDrainPending.set(false);
+                if (journalWriter != null) {
+                    drainBufferedReads();
+                }
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> expirySweepCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                expirySweepPending = false;
+                if (journalWriter != null) {
+                    removeExpired();
                 }
             }
             return null;
         }
     };
+    private final Callable<Void> compactionCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            compactPackedValues();
+            return null;
+        }
+    };
+    private final Callable<Void> syncCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            syncCommitted();
+            return null;
+        }
+    };
+    private final Callable<Void> checkpointCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            writeCheckpoint();
+            return null;
+        }
+    };
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Params params) {
+        this(directory, appVersion, valueCount, maxSize, params, null);
+    }
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Params params, DiskLruCache[] segments) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
+        this.cleanShutdownFile = new File(directory, CLEAN_SHUTDOWN_FILE);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.evictionHighWatermark = (long) (maxSize * (double) params.evictionHighWatermark);
+        this.evictionLowWatermark = (long) (maxSize * (double) params.evictionLowWatermark);
+        this.evictionCeiling = (long) (maxSize * (double) params.evictionCeiling);
+        this.params = params;
+        this.segments = segments;
+        this.packedValues = params.packedStorage && segments == null
+                ? new PackedValueStore(directory, params.packFileSize) : null;
+        this.lruEntries = new EntryIndex<Entry>(!params.readOptimized);
+        this.readOptimized = params.readOptimized && segments == null;
+        this.bufferedReads = readOptimized ? new ConcurrentLinkedQueue<String>() : null;
+        this.evictionPolicy = segments == null
+                ? params.evictionPolicy.create(evictionLowWatermark) : null;
+        this.unsyncedFiles = params.durability == DURABILITY_PERIODIC && !params.packedStorage
+                ? new ArrayList<File>() : null;
+        if (params.shardedLayout && segments == null) {
+            this.shardDirectories = new File[SHARD_COUNT];
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                shardDirectories[i] = new File(directory, shardPath(i));
+            }
+        } else {
+            this.shardDirectories = null;
+        }
     }
 
     /**
@@ -306,21 +741,97 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Params());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given optional parameters,
+     * creating a cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param params the optional parameters of the cache
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Params params) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (params.segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        if (params.packFileSize <= 0) {
+            throw new IllegalArgumentException("packFileSize <= 0");
+        }
+        if (params.evictionPolicy == null) {
+            throw new IllegalArgumentException("evictionPolicy == null");
+        }
+        if (params.codec == null) {
+            throw new IllegalArgumentException("codec == null");
+        }
+        if (params.codec != NONE && params.codec.id() == NONE.id()) {
+            throw new IllegalArgumentException("codec has the id of NONE");
+        }
+        if (params.durability < DURABILITY_NONE || params.durability > DURABILITY_PERIODIC) {
+            throw new IllegalArgumentException("unknown durability: " + params.durability);
+        }
+        if (params.durability == DURABILITY_PERIODIC && params.syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("syncIntervalMillis <= 0");
+        }
+        if (!(params.evictionLowWatermark > 0
+                && params.evictionLowWatermark <= params.evictionHighWatermark
+                && params.evictionHighWatermark <= params.evictionCeiling)) {
+            throw new IllegalArgumentException(
+                    "eviction watermarks must satisfy 0 < low <= high <= ceiling");
+        }
+        if (params.evictionsPerSecond < 0) {
+            throw new IllegalArgumentException("evictionsPerSecond < 0");
+        }
+        params = params.copy();
+        if (params.segmentCount > 1) {
+            return openSegmented(directory, appVersion, valueCount, maxSize, params);
+        }
+        DiskLruCache cache = openSegment(directory, appVersion, valueCount, maxSize, params);
+        // the segments of a cache stored here before are copied into this one
+        List<File> previous = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && (file.getName().startsWith(SEGMENT_DIR_PREFIX)
+                        || file.getName().equals(MIGRATION_DIR))) {
+                    previous.add(file);
+                }
+            }
+        }
+        cache.migrateInBackground(previous);
+        return cache;
+    }
 
+    private static DiskLruCache openSegment(File directory, int appVersion, int valueCount,
+            long maxSize, Params params) throws IOException {
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, params);
         if (cache.journalFile.exists()) {
             try {
+                // the marker is only there again once the cache is closed
+                cache.uncleanShutdown = !cache.cleanShutdownFile.delete();
+                if (cache.packedValues != null) {
+                    cache.packedValues.open();
+                }
                 cache.readJournal();
+                cache.migrateLayout();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (cache.journalRebuildOnOpen) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = cache.newJournalWriter();
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,573 +842,3772 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, params);
         cache.rebuildJournal();
+        if (cache.shardDirectories != null) {
+            new File(directory, SHARDED_LAYOUT_FILE).createNewFile();
+        }
         return cache;
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
-        try {
-            String magic = readAsciiLine(in);
-            String version = readAsciiLine(in);
-            String appVersionString = readAsciiLine(in);
-            String valueCountString = readAsciiLine(in);
-            String blank = readAsciiLine(in);
-            if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
-                    || !"".equals(blank)) {
-                throw new IOException("unexpected journal header: ["
-                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
-            }
-
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
-                }
-            }
-        } finally {
-            closeQuietly(in);
+    /**
+     * Opens a segmented cache in {@code directory}. Keys are hashed into
+     * sub-caches, each stored in its own subdirectory with its own journal and
+     * a share of {@code maxSize}. A cache stored in {@code directory} before,
+     * without segments or with a different number of them, is copied into the
+     * segments in the background and then deleted.
+     */
+    private static DiskLruCache openSegmented(File directory, int appVersion, int valueCount,
+            long maxSize, Params params) throws IOException {
+        int segmentCount = params.segmentCount;
+        if (maxSize < segmentCount) {
+            throw new IllegalArgumentException("maxSize < segmentCount");
         }
-    }
 
-    private void readJournalLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length < 2) {
-            throw new IOException("unexpected journal line: " + line);
+        directory.mkdirs();
+        String[] names = new String[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            names[i] = SEGMENT_DIR_PREFIX + segmentCount + "." + i;
         }
-
-        String key = parts[1];
-        if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
-            return;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("not a directory: " + directory);
+        }
+        // the files of a cache without segments are moved out of the way of
+        // the segments, and copied into them once they are open; files the
+        // cache doesn't know are left alone
+        File flat = new File(directory, MIGRATION_DIR);
+        List<File> previous = new ArrayList<File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (Arrays.asList(names).contains(name) || name.equals(MIGRATION_DIR)) {
+                continue;
+            }
+            if (file.isDirectory() && name.startsWith(SEGMENT_DIR_PREFIX)) {
+                previous.add(file);
+            } else if (isFlatCacheFile(file)) {
+                flat.mkdir();
+                moveFile(file, flat);
+            }
+        }
+        if (flat.exists()) {
+            previous.add(flat);
         }
 
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
+        DiskLruCache[] segments = new DiskLruCache[segmentCount];
+        long segmentSize = maxSize / segmentCount;
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                // the first segment absorbs the remainder of the division
+                long size = i == 0 ? maxSize - segmentSize * (segmentCount - 1) : segmentSize;
+                segments[i] = openSegment(new File(directory, names[i]), appVersion, valueCount,
+                        size, params);
+            }
+        } catch (IOException e) {
+            for (DiskLruCache segment : segments) {
+                closeQuietly(segment);
+            }
+            throw e;
         }
+        DiskLruCache cache =
+                new DiskLruCache(directory, appVersion, valueCount, maxSize, params, segments);
+        cache.migrateInBackground(previous);
+        return cache;
+    }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
-            entry.readable = true;
-            entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
-        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
-            entry.currentEditor = new Editor(entry);
-        } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
-        } else {
-            throw new IOException("unexpected journal line: " + line);
+    /**
+     * Returns true if {@code file}, found in the directory of a cache without
+     * segments, is one of that cache's: its journal and the files next to it,
+     * an entry's file, a pack or a shard directory.
+     */
+    private static boolean isFlatCacheFile(File file) {
+        String name = file.getName();
+        if (file.isDirectory()) {
+            return name.length() == 1 && new String(HEX_DIGITS).indexOf(name.charAt(0)) != -1;
         }
+        return name.startsWith(JOURNAL_FILE) || name.equals(SHARDED_LAYOUT_FILE)
+                || PackedValueStore.isPackFile(name) || entryKey(name) != null;
     }
 
     /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Copies the caches stored in {@code sources} into this cache in the
+     * background, so that opening doesn't wait for them.
      */
-    private void processJournal() throws IOException {
-        deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
-            if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
-                }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
-                }
-                i.remove();
-            }
+    private void migrateInBackground(List<File> sources) {
+        if (!sources.isEmpty()) {
+            migration = new Migration(sources);
+            executorService.submit(migration);
         }
     }
 
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * Copies the entries of the caches stored in other directories into this
+     * cache, from the least recently used on so that they keep their order,
+     * and then deletes those directories. Entries that fail to be copied are
+     * dropped, as is all of a cache that can't be read. Entries are copied a
+     * batch at a time, so that eviction and the other background work of the
+     * cache go on meanwhile. An entry that was written since this cache was
+     * opened keeps its new values, and one that was removed stays removed. If
+     * this cache is closed first, the next open resumes the migration.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
+    private final class Migration implements Callable<Void> {
+        private final List<File> sources;
+        /** The keys removed from this cache meanwhile, which aren't copied. */
+        private final Set<String> removedKeys = new HashSet<String>();
+        private File sourceDirectory;
+        private DiskLruCache source;
+        private Iterator<EntryInfo> entries;
+
+        private Migration(List<File> sources) {
+            this.sources = new ArrayList<File>(sources);
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        @Override public Void call() throws Exception {
+            if (isClosed()) {
+                stop();
+                migration = null;
+                return null;
+            }
+            if (source == null && !openNextSource()) {
+                migration = null; // done
+                return null;
+            }
+            try {
+                for (int n = 0; n < MIGRATION_BATCH_SIZE && entries.hasNext(); n++) {
+                    String key = entries.next().getKey();
+                    if (isRemoved(key)) {
+                        continue;
+                    }
+                    try {
+                        copyEntry(source, key);
+                    } catch (IOException e) {
+                        // drop this entry
+                    }
+                    if (isRemoved(key)) {
+                        remove(key); // removed while it was being copied
+                    }
+                }
+            } catch (IllegalStateException closed) {
+                stop();
+                migration = null;
+                return null;
+            }
+            if (!entries.hasNext()) {
+                stop();
+                deleteRecursively(sourceDirectory);
+            }
+            executorService.submit(this);
+            return null;
+        }
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        /** Opens the next cache to copy, and returns false if there is none left. */
+        private boolean openNextSource() throws IOException {
+            Params sourceParams = params.copy();
+            sourceParams.segmentCount = 1;
+            while (!sources.isEmpty()) {
+                sourceDirectory = sources.remove(0);
+                try {
+                    source = openSegment(sourceDirectory, appVersion, valueCount,
+                            Long.MAX_VALUE, sourceParams);
+                    entries = source.entries();
+                    return true;
+                } catch (IOException e) {
+                    deleteRecursively(sourceDirectory); // drop this previous cache
+                }
             }
+            return false;
         }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
-    }
+        /** Keeps the previous entry for {@code key} from being copied from now on. */
+        private synchronized void keyRemoved(String key) {
+            removedKeys.add(key);
+        }
 
-    private static void deleteIfExists(File file) throws IOException {
-//        try {
-//            Libcore.os.remove(file.getPath());
-//        } catch (ErrnoException errnoException) {
-//            if (errnoException.errno != OsConstants.ENOENT) {
-//                throw errnoException.rethrowAsIOException();
-//            }
-//        }
-        if (file.exists() && !file.delete()) {
-            throw new IOException();
+        private synchronized boolean isRemoved(String key) {
+            return removedKeys.contains(key);
+        }
+
+        private void stop() {
+            closeQuietly(source);
+            source = null;
+            entries = null;
         }
     }
 
     /**
-     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * Copies the entry named {@code key} from {@code source}, if readable and
+     * not written in this cache since it was opened.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
+    private void copyEntry(DiskLruCache source, String key) throws IOException {
+        Snapshot snapshot = source.peek(key);
+        if (snapshot == null) {
+            return;
         }
-
-        if (!entry.readable) {
-            return null;
+        try {
+            Editor editor = edit(key);
+            if (editor == null) {
+                return;
+            }
+            if (editor.entry.readable) {
+                editor.abort(); // written meanwhile
+                return;
+            }
+            try {
+                if (snapshot.getMetadata() != null) {
+                    editor.setMetadata(snapshot.getMetadata());
+                }
+                if (snapshot.getExpiresAt() != 0) {
+                    editor.setExpiresAt(snapshot.getExpiresAt());
+                }
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                for (int i = 0; i < valueCount; i++) {
+                    InputStream in = snapshot.getInputStream(i);
+                    OutputStream out = editor.newOutputStream(i);
+                    try {
+                        int count;
+                        while ((count = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, count);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                }
+                editor.commit();
+            } catch (IOException e) {
+                editor.abort();
+                throw e;
+            } catch (RuntimeException e) {
+                editor.abort();
+                throw e;
+            }
+        } finally {
+            snapshot.close();
         }
+    }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
+    private void readJournal() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first == BINARY_MAGIC >>> 24) {
+                readBinaryJournal(in);
+            } else {
+                readTextJournal(in);
+                journalRebuildOnOpen = true; // migrate to the binary format
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+        } finally {
+            closeQuietly(in);
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    private void readBinaryJournal(InputStream in) throws IOException {
+        int magic = readInt(in);
+        int version = in.read();
+        long appVersionValue = readVarint(in);
+        long valueCountValue = readVarint(in);
+        if (magic != BINARY_MAGIC
+                || version != BINARY_VERSION_1
+                || appVersionValue != appVersion
+                || valueCountValue != valueCount) {
+            throw new IOException("unexpected journal header: ["
+                    + Integer.toHexString(magic) + ", " + version + ", " + appVersionValue + ", "
+                    + valueCountValue + "]");
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        long headerLength = 5 + varintSize(appVersion) + varintSize(valueCount);
+        long checkpointLength = readCheckpoint(headerLength);
+        if (checkpointLength != -1) {
+            skipFully(in, checkpointLength - headerLength);
+            checkpointJournalLength = checkpointLength;
+        }
+
+        long[] lengths = new long[valueCount];
+        long[] locations = new long[valueCount];
+        while (true) {
+            int op = in.read();
+            if (op == -1) {
+                break;
+            }
+            try {
+                if ((op & ~OP_LITERAL_KEY) == OP_META) {
+                    String key = readKey(in, op);
+                    applyMetadata(key, readMetadata(in));
+                    continue;
+                }
+                if ((op & ~OP_LITERAL_KEY) == OP_CODEC) {
+                    String key = readKey(in, op);
+                    applyCodec(key, readVarint(in));
+                    continue;
+                }
+                String key = readJournalRecord(in, op, lengths, locations);
+                applyJournalRecord(op & ~OP_LITERAL_KEY, key, lengths, locations);
+            } catch (EOFException partialRecord) {
+                journalRebuildOnOpen = true;
+                break;
+            }
+        }
     }
 
     /**
-     * Returns an editor for the entry named {@code key}, or null if another
-     * edit is in progress.
+     * Loads the index from the checkpoint file if there is a usable one.
+     * Returns the length of the journal the checkpoint covers, or -1 if the
+     * whole journal must be replayed.
      */
-    public Editor edit(String key) throws IOException {
-        return edit(key, ANY_SEQUENCE_NUMBER);
+    private long readCheckpoint(long journalHeaderLength) {
+        if (!checkpointFile.exists()) {
+            return -1;
+        }
+        try {
+            byte[] bytes = new byte[(int) checkpointFile.length()];
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                readFully(in, bytes);
+            } finally {
+                closeQuietly(in);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            InputStream checkpoint = new ByteArrayInputStream(bytes, 0, bytes.length - 4);
+            InputStream trailer = new ByteArrayInputStream(bytes, bytes.length - 4, 4);
+            if (readInt(trailer) != (int) crc.getValue()
+                    || readInt(checkpoint) != CHECKPOINT_MAGIC
+                    || checkpoint.read() != CHECKPOINT_VERSION_3
+                    || readVarint(checkpoint) != appVersion
+                    || readVarint(checkpoint) != valueCount) {
+                throw new IOException("unexpected checkpoint header");
+            }
+            long journalLength = readVarint(checkpoint);
+            if (journalLength < journalHeaderLength || journalLength > journalFile.length()) {
+                throw new IOException("checkpoint doesn't match the journal");
+            }
+            nextSequenceNumber = readVarint(checkpoint);
+            long count = readVarint(checkpoint);
+            long[] lengths = new long[valueCount];
+            long[] locations = new long[valueCount];
+            for (long i = 0; i < count; i++) {
+                int op = readByte(checkpoint);
+                String key = readJournalRecord(checkpoint, op, lengths, locations);
+                applyJournalRecord(op & ~OP_LITERAL_KEY, key, lengths, locations);
+                getEntry(key).sequenceNumber = readVarint(checkpoint);
+                applyMetadata(key, readMetadata(checkpoint));
+                applyCodec(key, readVarint(checkpoint));
+            }
+            return journalLength;
+        } catch (IOException unusable) {
+            lruEntries.clear();
+            nextSequenceNumber = 0;
+            checkpointFile.delete();
+            return -1;
+        } catch (RuntimeException unusable) {
+            lruEntries.clear();
+            nextSequenceNumber = 0;
+            checkpointFile.delete();
+            return -1;
+        }
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
+    /**
+     * Writes the index to the checkpoint file. The index is encoded while
+     * holding the lock, but written to disk without it.
+     */
+    private void writeCheckpoint() throws IOException {
+        byte[] checkpoint;
+        long generation;
+        long journalLength;
+        synchronized (this) {
+            checkpointPending = false;
+            if (journalWriter == null) {
+                return; // closed
+            }
+            journalWriter.flush();
+            journalLength = journalWriter.position();
+            if (journalLength == checkpointJournalLength) {
+                return; // nothing was journaled since the last checkpoint
+            }
+            generation = journalGeneration;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 + lruEntries.size() * 24);
+            writeInt(out, CHECKPOINT_MAGIC);
+            out.write(CHECKPOINT_VERSION_3);
+            writeVarint(out, appVersion);
+            writeVarint(out, valueCount);
+            writeVarint(out, journalLength);
+            writeVarint(out, nextSequenceNumber);
+            writeVarint(out, lruEntries.size());
+            for (Entry entry : lruEntries) {
+                writeJournalRecord(out, entry.currentEditor != null ? OP_DIRTY : OP_CLEAN, entry);
+                writeVarint(out, entry.sequenceNumber);
+                writeMetadata(out, entry.metadata);
+                writeVarint(out, entry.codec.id());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out.toByteArray());
+            writeInt(out, (int) crc.getValue());
+            checkpoint = out.toByteArray();
         }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+        OutputStream out = new FileOutputStream(checkpointFileTmp);
+        try {
+            out.write(checkpoint);
+        } finally {
+            out.close();
+        }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+        synchronized (this) {
+            if (generation != journalGeneration) {
+                // the journal was rebuilt meanwhile; this checkpoint is stale
+                deleteIfExists(checkpointFileTmp);
+                return;
+            }
+            if (!checkpointFileTmp.renameTo(checkpointFile)) {
+                throw new IOException("failed to rename " + checkpointFileTmp);
+            }
+            checkpointJournalLength = journalLength;
+        }
     }
 
     /**
-     * Returns the directory where this cache stores its data.
+     * Checkpoint once enough journal has been written since the last one that
+     * replaying it would take noticeably longer than loading a checkpoint.
      */
-    public File getDirectory() {
-        return directory;
+    private void scheduleCheckpointIfRequired() {
+        final long CHECKPOINT_INTERVAL = 64 * 1024;
+        if (!checkpointPending
+                && journalWriter.position() - checkpointJournalLength >= CHECKPOINT_INTERVAL) {
+            checkpointPending = true;
+            executorService.submit(checkpointCallable);
+        }
     }
 
-    /**
-     * Returns the maximum number of bytes that this cache should use to store
-     * its data.
-     */
-    public long maxSize() {
-        return maxSize;
+    private JournalWriter newJournalWriter() throws IOException {
+        return new JournalWriter(journalFile, params.journalCommitWindowMillis,
+                journalFailureListener);
     }
 
     /**
-     * Returns the number of bytes currently being used to store the values in
-     * this cache. This may be greater than the max size if a background
-     * deletion is pending.
+     * Blocks until the journal has been committed up to {@code position}, and
+     * synced if {@code sync} is true. Positions from before the journal was
+     * last rebuilt are committed, as the rebuilt journal already contains
+     * their records.
      */
-    public synchronized long size() {
-        return size;
+    private void awaitJournal(long generation, long position, boolean sync) throws IOException {
+        JournalWriter writer;
+        synchronized (this) {
+            if (generation != journalGeneration || journalWriter == null) {
+                return;
+            }
+            writer = journalWriter;
+        }
+        if (sync) {
+            writer.awaitSync(position);
+        } else {
+            writer.awaitCommit(position);
+        }
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
+    /** Returns true if commits wait for their journal records to be synced. */
+    private boolean syncsJournal() {
+        return params.durability == DURABILITY_JOURNAL_ONLY
+                || params.durability == DURABILITY_FULL_FSYNC;
+    }
+
+    /** Returns true if commits sync their values. */
+    private boolean syncsValues() {
+        return params.durability == DURABILITY_FULL_FSYNC;
+    }
+
+    private void readTextJournal(InputStream in) throws IOException {
+        String magic = readAsciiLine(in);
+        String version = readAsciiLine(in);
+        String appVersionString = readAsciiLine(in);
+        String valueCountString = readAsciiLine(in);
+        String blank = readAsciiLine(in);
+        if (!MAGIC.equals(magic)
+                || !VERSION_1.equals(version)
+                || !Integer.toString(appVersion).equals(appVersionString)
+                || !Integer.toString(valueCount).equals(valueCountString)
+                || !"".equals(blank)) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
         }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+        long[] lengths = new long[valueCount];
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in), lengths);
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
+    private void readJournalLine(String line, long[] lengths) throws IOException {
+        final long[] locations = null; // text journals predate packed storage
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        String key = parts[1];
+        if (parts[0].equals(REMOVE) && parts.length == 2) {
+            applyJournalRecord(OP_REMOVE, key, lengths, locations);
+        } else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+            String[] strings = copyOfRange(parts, 2, parts.length);
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    lengths[i] = Long.parseLong(strings[i]);
                 }
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + Arrays.toString(strings));
             }
+            applyJournalRecord(OP_CLEAN, key, lengths, locations);
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            applyJournalRecord(OP_DIRTY, key, lengths, locations);
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            applyJournalRecord(OP_READ, key, lengths, locations);
+        } else {
+            throw new IOException("unexpected journal line: " + line);
         }
+    }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+    /**
+     * Reads the key and the state-specific values of a binary journal record
+     * whose opcode has already been read.
+     */
+    private String readJournalRecord(InputStream in, int op, long[] lengths, long[] locations)
+            throws IOException {
+        String key = readKey(in, op);
+        op &= ~OP_LITERAL_KEY;
+        if (op == OP_CLEAN || op == OP_CLEAN_PACKED) {
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = readVarint(in);
+                if (op == OP_CLEAN_PACKED) {
+                    locations[i] = readVarint(in);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
         }
+        return key;
+    }
+
+    private void applyJournalRecord(int op, String key, long[] lengths, long[] locations)
+            throws IOException {
+        Entry entry = getEntry(key);
+        if (op == OP_REMOVE) {
+            if (entry != null) {
+                lruEntries.remove(entry.keyHigh, entry.keyLow);
+            }
+            return;
+        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
+        if (entry == null) {
+            // replaces any entry whose key has the same 128-bit form
+            entry = new Entry(key);
+            lruEntries.put(entry.keyHigh, entry.keyLow, entry);
+        }
+
+        if (op == OP_CLEAN || op == OP_CLEAN_PACKED) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            entry.locations = op == OP_CLEAN_PACKED ? locations.clone() : null;
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else if (op == OP_READ) {
+            // this work was already done by calling getEntry(), unless the
+            // entries are kept in insertion order
+            if (readOptimized) {
+                lruEntries.moveToTail(entry.keyHigh, entry.keyLow);
             }
         } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            throw new IOException("unexpected journal opcode: " + op);
         }
+    }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    private void applyMetadata(String key, Metadata metadata) {
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            entry.metadata = metadata;
         }
     }
 
     /**
-     * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * Sets the codec of the entry for {@code key}. An entry written with a
+     * codec this cache wasn't opened with is left without one, and dropped.
      */
-    private boolean journalRebuildRequired() {
-        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+    private void applyCodec(String key, long id) {
+        Entry entry = getEntry(key);
+        if (entry != null) {
+            entry.codec = codecFor(id);
+        }
+    }
+
+    /** Returns the codec with {@code id} that this cache knows, or null. */
+    private Codec codecFor(long id) {
+        if (id == NONE.id()) {
+            return NONE;
+        }
+        return id == params.codec.id() ? params.codec : null;
+    }
+
+    /** Reads the payload of a META record, returning null for no metadata. */
+    private static Metadata readMetadata(InputStream in) throws IOException {
+        long expiresAt = readVarint(in);
+        long length = readVarint(in);
+        if (length > MAX_METADATA_LENGTH) {
+            throw new IOException("unexpected metadata length: " + length);
+        }
+        byte[] value = new byte[(int) length];
+        readFully(in, value);
+        if (expiresAt == 0 && value.length == 0) {
+            return null;
+        }
+        return new Metadata(value.length > 0 ? new String(value, UTF_8) : null, expiresAt);
+    }
+
+    private static void writeMetadata(OutputStream out, Metadata metadata) throws IOException {
+        if (metadata == null) {
+            out.write(0);
+            out.write(0);
+            return;
+        }
+        byte[] value = metadata.value != null ? metadata.value.getBytes(UTF_8) : new byte[0];
+        writeVarint(out, metadata.expiresAt);
+        writeVarint(out, value.length);
+        out.write(value);
     }
 
     /**
-     * Drops the entry for {@code key} if it exists and can be removed. Entries
-     * actively being edited cannot be removed.
-     *
-     * @return true if an entry was removed.
+     * Appends a record for {@code entry} to the journal. CLEAN records are
+     * followed by the current lengths of the entry's values.
      */
-    public synchronized boolean remove(String key) throws IOException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+    private void writeJournalRecord(OutputStream out, int op, Entry entry) throws IOException {
+        if (op == OP_CLEAN && entry.locations != null) {
+            op = OP_CLEAN_PACKED;
+        }
+        if (entry.literalKey != null) {
+            writeJournalRecord(out, op, entry.literalKey);
+        } else {
+            out.write(op);
+            writeLong(out, entry.keyHigh);
+            writeLong(out, entry.keyLow);
+        }
+        if (op == OP_CLEAN || op == OP_CLEAN_PACKED) {
+            for (int i = 0; i < valueCount; i++) {
+                writeVarint(out, entry.lengths[i]);
+                if (op == OP_CLEAN_PACKED) {
+                    writeVarint(out, entry.locations[i]);
+                }
+            }
+        }
+    }
+
+    private static void writeJournalRecord(OutputStream out, int op, String key)
+            throws IOException {
+        if (isHexDigest(key)) {
+            out.write(op);
+            for (int i = 0; i < KEY_DIGEST_LENGTH * 2; i += 2) {
+                out.write(Character.digit(key.charAt(i), 16) << 4
+                        | Character.digit(key.charAt(i + 1), 16));
+            }
+        } else {
+            byte[] bytes = key.getBytes(UTF_8);
+            out.write(op | OP_LITERAL_KEY);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readKey(InputStream in, int op) throws IOException {
+        if ((op & OP_LITERAL_KEY) != 0) {
+            byte[] bytes = new byte[(int) readVarint(in)];
+            readFully(in, bytes);
+            return new String(bytes, UTF_8);
+        }
+        char[] chars = new char[KEY_DIGEST_LENGTH * 2];
+        for (int i = 0; i < KEY_DIGEST_LENGTH; i++) {
+            int b = readByte(in);
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the entry named {@code key}, or null. If the index is ordered by
+     * access, the entry becomes the most recently used one.
+     */
+    private Entry getEntry(String key) {
+        Entry entry = lruEntries.get(keyHigh(key), keyLow(key));
+        return entry != null && entry.hasKey(key) ? entry : null;
+    }
+
+    /**
+     * Returns the entry named {@code key}, or null, without changing the
+     * order. Without the lock, this may miss an entry being moved.
+     */
+    private Entry peekEntry(String key) {
+        Entry entry = lruEntries.peek(keyHigh(key), keyLow(key));
+        return entry != null && entry.hasKey(key) ? entry : null;
+    }
+
+    /**
+     * Returns the high half of the 128-bit form of {@code key}: the digest it
+     * spells in hex or, for other keys, a hash of it.
+     */
+    private static long keyHigh(String key) {
+        return isHexDigest(key) ? parseHex(key, 0) : hashKey(key, 0xc3a5c85c97cb3127L);
+    }
+
+    /** Returns the low half of the 128-bit form of {@code key}. */
+    private static long keyLow(String key) {
+        return isHexDigest(key) ? parseHex(key, 16) : hashKey(key, 0xb492b66fbe98f273L);
+    }
+
+    private static long parseHex(String key, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; i++) {
+            char c = key.charAt(i);
+            value = value << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    private static long hashKey(String key, long seed) {
+        long h = seed ^ key.length();
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 29;
+        }
+        h *= 0xbf58476d1ce4e5b9L;
+        return h ^ (h >>> 32);
+    }
+
+    private static String toHex(long high, long low) {
+        char[] chars = new char[KEY_DIGEST_LENGTH * 2];
+        for (int i = 0; i < 16; i++) {
+            chars[i] = HEX_DIGITS[(int) (high >>> (60 - i * 4)) & 0xf];
+            chars[i + 16] = HEX_DIGITS[(int) (low >>> (60 - i * 4)) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns true if {@code key} is exactly 32 lowercase hex characters and
+     * can be journaled as a 16 byte digest without losing information.
+     */
+    private static boolean isHexDigest(String key) {
+        if (key.length() != KEY_DIGEST_LENGTH * 2) {
             return false;
         }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        return readByte(in) << 24 | readByte(in) << 16 | readByte(in) << 8 | readByte(in);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Computes the initial size and collects garbage as a part of opening the
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        deleteIfExists(checkpointFileTmp);
+        // the shards of a cache storing files are walked for leftover files
+        boolean walkShards = shardDirectories != null && packedValues == null;
+        for (Iterator<Entry> i = lruEntries.iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            boolean storedAsConfigured = (entry.locations != null) == (packedValues != null)
+                    && entry.codec != null;
+            if (entry.currentEditor == null && storedAsConfigured && addLive(entry)
+                    && (!uncleanShutdown || hasCompleteFiles(entry))) {
+                for (int t = 0; t < valueCount; t++) {
+                    size += entry.lengths[t];
+                }
+            } else {
+                // unfinished edits, and entries that are missing, were cut
+                // short by a crash, or were stored before the storage or the
+                // codec was switched
+                if (entry.currentEditor == null) {
+                    journalRebuildOnOpen = true;
+                }
+                entry.currentEditor = null;
+                if (entry.locations == null && !walkShards) {
+                    for (int t = 0; t < valueCount; t++) {
+                        deleteIfExists(entry.getCleanFile(t));
+                        deleteIfExists(entry.getDirtyFile(t));
+                    }
+                }
+                i.remove();
+            }
+        }
+        if (walkShards) {
+            deleteUnusedEntryFiles();
+        }
+        if (packedValues != null) {
+            packedValues.deleteUnusedPacks();
+        } else {
+            deletePackFiles();
+        }
+        for (Entry entry : lruEntries) {
+            scheduleExpiry(entry);
+        }
+        if (readOptimized) {
+            for (Entry entry : lruEntries) {
+                publish(entry);
+            }
+        }
+    }
+
+    /**
+     * Registers the packed values of a clean entry with the value store.
+     * Returns false if any of them is missing from its pack.
+     */
+    private boolean addLive(Entry entry) {
+        if (entry.locations == null) {
+            return true;
+        }
+        for (int t = 0; t < valueCount; t++) {
+            if (!packedValues.addLive(entry.locations[t], entry.lengths[t])) {
+                for (int u = 0; u < t; u++) {
+                    packedValues.release(entry.locations[u], entry.lengths[u]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true unless the entry is stored in files of lengths other than
+     * those journaled, as when a crash lost values that weren't synced. The
+     * lengths of packed values are checked by {@link #addLive}.
+     */
+    private boolean hasCompleteFiles(Entry entry) {
+        if (entry.locations != null) {
+            return true;
+        }
+        for (int t = 0; t < valueCount; t++) {
+            File file = entry.getCleanFile(t);
+            if (file.length() != entry.lengths[t] || (entry.lengths[t] == 0 && !file.exists())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the files of unfinished edits, and of entries that are no longer
+     * in the journal, from all shards.
+     */
+    private void deleteUnusedEntryFiles() throws IOException {
+        walkInParallel(Arrays.asList(shardDirectories), new DirectoryVisitor() {
+            @Override public void visit(File shard) throws IOException {
+                File[] files = shard.listFiles();
+                if (files == null) {
+                    return; // created with its first file
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    String key = entryKey(name);
+                    if (name.endsWith(".tmp") || key == null || peekEntry(key) == null) {
+                        deleteIfExists(file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the files of the entries into the layout the cache is opened
+     * with, if they are in the other one. A marker file is present while the
+     * cache is sharded; as it is only created or deleted once all files were
+     * moved, an interrupted migration is resumed by the next open.
+     */
+    private void migrateLayout() throws IOException {
+        File marker = new File(directory, SHARDED_LAYOUT_FILE);
+        boolean sharded = marker.exists();
+        if (sharded == (shardDirectories != null)) {
+            return;
+        }
+        if (!sharded) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("not a directory: " + directory);
+            }
+            for (File file : files) {
+                String key = entryKey(file.getName());
+                if (key != null && file.isFile()) {
+                    moveFile(file, shardDirectories[shardIndex(key)]);
+                }
+            }
+            if (!marker.createNewFile()) {
+                throw new IOException("failed to create file: " + marker);
+            }
+        } else {
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                File shard = new File(directory, shardPath(i));
+                File[] files = shard.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        moveFile(file, directory);
+                    }
+                    deleteIfExists(shard);
+                }
+                if (i % 16 == 15) {
+                    deleteIfExists(shard.getParentFile());
+                }
+            }
+            deleteIfExists(marker);
+        }
+    }
+
+    private static void moveFile(File file, File toDirectory) throws IOException {
+        File to = new File(toDirectory, file.getName());
+        if (!file.renameTo(to)) {
+            toDirectory.mkdirs();
+            if (!file.renameTo(to)) {
+                throw new IOException("failed to move " + file + " to " + toDirectory);
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the entry that a file named {@code name} belongs to,
+     * or null if it isn't an entry file.
+     */
+    private static String entryKey(String name) {
+        if (name.endsWith(".tmp")) {
+            name = name.substring(0, name.length() - ".tmp".length());
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return null;
+        }
+        for (int i = dot + 1; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return null;
+            }
+        }
+        return name.substring(0, dot);
+    }
+
+    /**
+     * Returns the shard of {@code key}. The hash is mixed differently from
+     * the one picking segments, so that all shards of a segment are used.
+     */
+    private static int shardIndex(String key) {
+        return shardIndex(key.hashCode());
+    }
+
+    /** Returns the shard of the key whose {@link String#hashCode} is {@code keyHash}. */
+    private static int shardIndex(int keyHash) {
+        return (keyHash * 0x9e3779b9) >>> 24;
+    }
+
+    /**
+     * Returns the {@link String#hashCode} of the hex form of a digest key,
+     * without creating it.
+     */
+    private static int hexHashCode(long high, long low) {
+        int h = 0;
+        for (int i = 0; i < 16; i++) {
+            h = 31 * h + HEX_DIGITS[(int) (high >>> (60 - i * 4)) & 0xf];
+        }
+        for (int i = 0; i < 16; i++) {
+            h = 31 * h + HEX_DIGITS[(int) (low >>> (60 - i * 4)) & 0xf];
+        }
+        return h;
+    }
+
+    private static String shardPath(int index) {
+        return HEX_DIGITS[index >>> 4] + File.separator + HEX_DIGITS[index & 0xf];
+    }
+
+    /** Deletes the pack files left behind by a cache that used packed storage. */
+    private void deletePackFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (PackedValueStore.isPackFile(file.getName())) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the
+     * current journal if it exists.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+
+        FileOutputStream file = new FileOutputStream(journalFileTmp);
+        OutputStream writer = new BufferedOutputStream(file, IO_BUFFER_SIZE);
+        writeCompactJournal(writer);
+        writer.flush();
+        if (params.durability != DURABILITY_NONE) {
+            file.getFD().sync(); // the rename mustn't outlive the contents
+        }
+        writer.close();
+        replaceJournal();
+    }
+
+    /**
+     * Writes a journal header followed by one record per entry. Must be
+     * called with the cache's lock held.
+     */
+    private void writeCompactJournal(OutputStream writer) throws IOException {
+        writeInt(writer, BINARY_MAGIC);
+        writer.write(BINARY_VERSION_1);
+        writeVarint(writer, appVersion);
+        writeVarint(writer, valueCount);
+
+        for (Entry entry : lruEntries) {
+            if (entry.currentEditor != null) {
+                writeJournalRecord(writer, OP_DIRTY, entry);
+            } else {
+                writeJournalRecord(writer, OP_CLEAN, entry);
+                if (entry.metadata != null) {
+                    writeJournalRecord(writer, OP_META, entry);
+                    writeMetadata(writer, entry.metadata);
+                }
+                if (entry.codec != NONE) {
+                    writeJournalRecord(writer, OP_CODEC, entry);
+                    writeVarint(writer, entry.codec.id());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with the temporary journal and starts appending
+     * to it. Must be called with the cache's lock held and the current
+     * journal writer closed.
+     */
+    private void replaceJournal() throws IOException {
+        journalGeneration++;
+        deleteIfExists(checkpointFile);
+        checkpointJournalLength = 0;
+        journalFileTmp.renameTo(journalFile);
+        journalRebuildOnOpen = false;
+        redundantOpCount = 0;
+        journalWriter = newJournalWriter();
+    }
+
+    /**
+     * Rebuilds the journal like {@link #rebuildJournal} without holding the
+     * cache's lock while writing it, so that the cache stays available. The
+     * entries are snapshotted under the lock and written off it; then, under
+     * the lock again, the records appended meanwhile are copied over from the
+     * end of the current journal and the new journal is swapped in.
+     */
+    private void compactJournal() throws IOException {
+        byte[] compacted;
+        long generation;
+        long snapshotPosition;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            generation = journalGeneration;
+            snapshotPosition = journalWriter.position();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 + lruEntries.size() * 24);
+            writeCompactJournal(out);
+            compacted = out.toByteArray();
+        }
+
+        OutputStream out = new FileOutputStream(journalFileTmp);
+        try {
+            out.write(compacted);
+        } finally {
+            out.close();
+        }
+
+        synchronized (this) {
+            if (journalWriter == null || generation != journalGeneration) {
+                // closed or rebuilt meanwhile
+                deleteIfExists(journalFileTmp);
+                return;
+            }
+            if (journalWriter.failed()) {
+                // the journal has a gap; journalRecoveryCallable rebuilds it
+                deleteIfExists(journalFileTmp);
+                return;
+            }
+            journalWriter.close();
+            journalWriter = null;
+            try {
+                appendJournalTail(snapshotPosition);
+            } catch (IOException e) {
+                // keep the current journal, which is still complete
+                deleteIfExists(journalFileTmp);
+                journalWriter = newJournalWriter();
+                throw e;
+            }
+            replaceJournal();
+        }
+    }
+
+    /**
+     * Appends the records of the journal from {@code position} onwards to
+     * the temporary journal.
+     */
+    private void appendJournalTail(long position) throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        try {
+            skipFully(in, position);
+            FileOutputStream out = new FileOutputStream(journalFileTmp, true);
+            try {
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                if (params.durability != DURABILITY_NONE) {
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+//        try {
+//            Libcore.os.remove(file.getPath());
+//        } catch (ErrnoException errnoException) {
+//            if (errnoException.errno != OsConstants.ENOENT) {
+//                throw errnoException.rethrowAsIOException();
+//            }
+//        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue.
+     */
+    public Snapshot get(String key) throws IOException {
+        if (segments != null) {
+            return segmentFor(key).get(key);
+        }
+        if (readOptimized) {
+            Snapshot snapshot = getWithoutLock(key);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            Snapshot snapshot = openSnapshot(key, true);
+            if (snapshot != null) {
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+                scheduleCheckpointIfRequired();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns snapshots of the readable entries among {@code keys}, in the
+     * order of the keys. Rather than once per key, this takes the lock once per
+     * segment, and journals the reads together. The caller must close the
+     * snapshots.
+     */
+    public Map<String, Snapshot> getAll(Collection<String> keys) throws IOException {
+        Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>();
+        if (segments != null) {
+            Map<String, Snapshot> found = new HashMap<String, Snapshot>();
+            boolean success = false;
+            try {
+                for (Map.Entry<DiskLruCache, List<String>> group
+                        : groupBySegment(keys).entrySet()) {
+                    found.putAll(group.getKey().getAll(group.getValue()));
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    closeAll(found.values()); // those of the segments read before the failure
+                }
+            }
+            for (String key : keys) {
+                Snapshot snapshot = found.get(key);
+                if (snapshot != null) {
+                    snapshots.put(key, snapshot);
+                }
+            }
+            return snapshots;
+        }
+
+        boolean success = false;
+        try {
+            List<String> misses = new ArrayList<String>();
+            for (String key : keys) {
+                if (snapshots.containsKey(key)) {
+                    continue;
+                }
+                Snapshot snapshot = readOptimized ? getWithoutLock(key) : null;
+                snapshots.put(key, snapshot);
+                if (snapshot == null) {
+                    misses.add(key);
+                }
+            }
+            synchronized (this) {
+                boolean read = false;
+                try {
+                    checkNotClosed();
+                    for (String key : misses) {
+                        validateKey(key);
+                        Snapshot snapshot = openSnapshot(key, true);
+                        snapshots.put(key, snapshot);
+                        read |= snapshot != null;
+                    }
+                } finally {
+                    if (read) {
+                        if (journalRebuildRequired()) {
+                            executorService.submit(cleanupCallable);
+                        }
+                        scheduleCheckpointIfRequired();
+                    }
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                closeAll(snapshots.values()); // including those read without the lock
+            }
+        }
+        snapshots.values().removeAll(Collections.singleton(null));
+        return snapshots;
+    }
+
+    private static void closeAll(Collection<Snapshot> snapshots) {
+        for (Snapshot snapshot : snapshots) {
+            closeQuietly(snapshot);
+        }
+    }
+
+    /**
+     * Reads the values of the readable entries among {@code keys}, so that the
+     * filesystem has them cached by the time they are needed. This doesn't
+     * count as a use of the entries. The values are looked up holding the lock
+     * once per segment; their files are opened and read without it, one at a
+     * time, as stored rather than decoded. Values that fail to be read are
+     * skipped.
+     */
+    public void prefetch(Collection<String> keys) {
+        if (segments != null) {
+            for (Map.Entry<DiskLruCache, List<String>> group : groupBySegment(keys).entrySet()) {
+                group.getKey().prefetch(group.getValue());
+            }
+            return;
+        }
+
+        // packed values are pinned under the lock, which opens no file
+        List<InputStream> packed = new ArrayList<InputStream>();
+        List<File> files = new ArrayList<File>();
+        synchronized (this) {
+            checkNotClosed();
+            for (String key : keys) {
+                validateKey(key);
+                Entry entry = peekEntry(key);
+                if (entry == null || !entry.readable) {
+                    continue;
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    if (entry.locations == null) {
+                        files.add(entry.getCleanFile(i));
+                        continue;
+                    }
+                    try {
+                        packed.add(entry.newInputStream(i));
+                    } catch (IOException e) {
+                        // its pack is gone
+                    }
+                }
+            }
+        }
+
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        try {
+            for (InputStream in : packed) {
+                readQuietly(in, buffer);
+            }
+            for (File file : files) {
+                InputStream in;
+                try {
+                    in = new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    continue; // removed meanwhile, or deleted manually
+                }
+                try {
+                    readQuietly(in, buffer);
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        } finally {
+            for (InputStream in : packed) {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /** Reads {@code in} to its end, as a prefetch that may fail. */
+    private static void readQuietly(InputStream in, byte[] buffer) {
+        try {
+            while (in.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            // only a missed optimization
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it isn't
+     * readable, without counting as a use of the entry: it keeps its place in
+     * the eviction order, and no read is journaled.
+     */
+    public Snapshot peek(String key) throws IOException {
+        if (segments != null) {
+            return segmentFor(key).peek(key);
+        }
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            return openSnapshot(key, false);
+        }
+    }
+
+    /**
+     * Returns true if the entry named {@code key} is readable, without
+     * counting as a use of the entry.
+     */
+    public boolean contains(String key) {
+        if (segments != null) {
+            return segmentFor(key).contains(key);
+        }
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = peekEntry(key);
+            return entry != null && entry.readable
+                    && !entry.isExpired(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Opens a snapshot of the entry named {@code key}, or returns null if the
+     * entry isn't readable. If {@code use} is true, the read is journaled and
+     * the entry becomes the most recently used one. Must be called with the
+     * cache's lock held.
+     */
+    private Snapshot openSnapshot(String key, boolean use) throws IOException {
+        Entry entry = use ? getEntry(key) : peekEntry(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.readable) {
+            return null;
+        }
+
+        if (entry.isExpired(System.currentTimeMillis())) {
+            scheduleExpirySweepIfRequired();
+            return null;
+        }
+
+        /*
+         * Open all streams eagerly to guarantee that we see a single published
+         * snapshot. If we opened streams lazily then the streams could come
+         * from different edits.
+         */
+        InputStream[] ins = new InputStream[valueCount];
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = entry.newInputStream(i);
+            }
+        } catch (FileNotFoundException e) {
+            // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            return null;
+        }
+
+        if (use) {
+            entry.accessed = true;
+            evictionPolicy.recordRead(key);
+            redundantOpCount++;
+            writeJournalRecord(journalWriter, OP_READ, entry);
+        }
+
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone(),
+                entry.metadata, entry.codec);
+    }
+
+    /** Groups {@code keys} by the segment they belong to. */
+    private Map<DiskLruCache, List<String>> groupBySegment(Collection<String> keys) {
+        Map<DiskLruCache, List<String>> groups = new HashMap<DiskLruCache, List<String>>();
+        for (String key : keys) {
+            DiskLruCache segment = segmentFor(key);
+            List<String> group = groups.get(segment);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(segment, group);
+            }
+            group.add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key} without taking the
+     * cache's lock, or null if the entry isn't readable, is being changed, or
+     * was changed while its streams were being opened, or if the cache is
+     * closing. The caller then falls back to the locked path, which has the
+     * final word.
+     */
+    private Snapshot getWithoutLock(String key) {
+        Entry entry = peekEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        int modCount = entry.modCount;
+        PublishedValues values = entry.published;
+        if (closed || (modCount & 1) != 0 || values == null || (values.metadata != null
+                && values.metadata.isExpired(System.currentTimeMillis()))) {
+            return null;
+        }
+
+        InputStream[] ins = new InputStream[valueCount];
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                ins[i] = values.locations != null
+                        ? packedValues.newInputStream(values.locations[i], values.lengths[i])
+                        : new FileInputStream(entry.getCleanFile(i));
+            }
+        } catch (IOException e) {
+            // removed, replaced or compacted meanwhile
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            return null;
+        }
+        if (entry.modCount != modCount || closed) {
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            return null;
+        }
+
+        if (!entry.accessed) {
+            entry.accessed = true;
+        }
+        bufferRead(key);
+        return new Snapshot(key, values.sequenceNumber, ins, values.lengths, values.metadata,
+                values.codec);
+    }
+
+    /**
+     * Queues a READ record for {@code key}, to be journaled with others by the
+     * background thread. Reads beyond what the queue holds are not journaled;
+     * they only affect the order of the entries after the cache is reopened.
+     */
+    private void bufferRead(String key) {
+        final int READ_BATCH_SIZE = 64;
+        final int MAX_BUFFERED_READS = 4096;
+        int buffered = bufferedReadCount.incrementAndGet();
+        if (buffered > MAX_BUFFERED_READS) {
+            bufferedReadCount.decrementAndGet();
+            return;
+        }
+        bufferedReads.offer(key);
+        if (buffered >= READ_BATCH_SIZE && readDrainPending.compareAndSet(false, true)) {
+            executorService.submit(readDrainCallable);
+        }
+    }
+
+    /**
+     * Journals the buffered READ records. Must be called with the cache's lock
+     * held.
+     */
+    private void drainBufferedReads() throws IOException {
+        if (bufferedReads == null) {
+            return;
+        }
+        String key;
+        while ((key = bufferedReads.poll()) != null) {
+            bufferedReadCount.decrementAndGet();
+            Entry entry = getEntry(key);
+            if (entry != null && entry.readable) {
+                evictionPolicy.recordRead(key);
+                redundantOpCount++;
+                writeJournalRecord(journalWriter, OP_READ, entry);
+            }
+        }
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        scheduleCheckpointIfRequired();
+    }
+
+    /**
+     * Marks the start of a change to the committed values of {@code entry},
+     * so that reads without the lock racing with it retry under the lock.
+     */
+    private void beginUpdate(Entry entry) {
+        if (readOptimized) {
+            entry.modCount++;
+            // the published values share the arrays, so they are changed as copies
+            entry.lengths = entry.lengths.clone();
+            if (entry.locations != null) {
+                entry.locations = entry.locations.clone();
+            }
+        }
+    }
+
+    /**
+     * Publishes the committed values of {@code entry} to reads without the
+     * lock once a change started with {@link #beginUpdate} is complete.
+     */
+    private void endUpdate(Entry entry) {
+        if (readOptimized) {
+            publish(entry);
+            entry.modCount++;
+        }
+    }
+
+    private void publish(Entry entry) {
+        entry.published = entry.readable && lruEntries.peek(entry.keyHigh, entry.keyLow) == entry
+                ? new PublishedValues(entry) : null;
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public Editor edit(String key) throws IOException {
+        if (segments != null) {
+            return segmentFor(key).edit(key);
+        }
+        return edit(key, ANY_SEQUENCE_NUMBER);
+    }
+
+    /**
+     * Returns a stream over the value at {@code index} being written by the
+     * edit in progress of the entry named {@code key}, or null if the entry
+     * isn't being edited. The stream returns bytes as they are written,
+     * blocking for more until the edit is committed; it throws an
+     * IOException if the edit is aborted, or if it is committed without
+     * writing this value, in which case {@link #get} has it. The stream
+     * supports {@link InputStream#mark} and {@link InputStream#reset}.
+     */
+    public InputStream tail(String key, int index) throws IOException {
+        if (segments != null) {
+            return segmentFor(key).tail(key, index);
+        }
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = getEntry(key);
+            if (entry == null || entry.currentEditor == null) {
+                return null;
+            }
+            return new DecodingTailInputStream(
+                    new TailingInputStream(entry.currentEditor.progress[index]));
+        }
+    }
+
+    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = getEntry(key);
+        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+            return null; // snapshot is stale
+        }
+        if (entry == null) {
+            Entry colliding = lruEntries.peek(keyHigh(key), keyLow(key));
+            if (colliding != null && !remove(colliding.key())) {
+                return null; // another key with the same 128-bit form is being edited
+            }
+            entry = new Entry(key);
+            lruEntries.put(entry.keyHigh, entry.keyLow, entry);
+        } else if (entry.currentEditor != null) {
+            return null; // another edit is in progress
+        }
+
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+
+        // the commit waits for this record to be committed before renaming
+        // the files into place, to prevent file leaks
+        writeJournalRecord(journalWriter, OP_DIRTY, entry);
+        editor.dirtyGeneration = journalGeneration;
+        editor.dirtyPosition = journalWriter.position();
+        return editor;
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache. This may be greater than the max size if a background
+     * deletion is pending.
+     */
+    public long size() {
+        if (segments != null) {
+            long total = 0;
+            for (DiskLruCache segment : segments) {
+                total += segment.size();
+            }
+            return total;
+        }
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns an iterator over the readable entries of this cache, least
+     * recently used first, that tells their keys, the lengths of their values
+     * and their places in the order of use without opening them. The order
+     * is copied when this is called; the entries are then read a batch at a
+     * time, taking the lock once per batch rather than for the whole walk.
+     * Entries removed meanwhile are skipped, and entries created meanwhile
+     * aren't returned.
+     *
+     * <p>A read-optimized cache doesn't reorder its entries as they are read,
+     * so there the entries read since the last eviction sweep come last. A
+     * segmented cache returns the entries of one segment after another, their
+     * places scaled to the whole cache so that they interleave.
+     */
+    public Iterator<EntryInfo> entries() {
+        if (segments == null) {
+            List<Entry> order = accessOrder();
+            return new EntryIterator(order, order.size());
+        }
+        if (isClosed()) {
+            throw new IllegalStateException("cache is closed");
+        }
+        List<List<Entry>> orders = new ArrayList<List<Entry>>(segments.length);
+        long total = 0;
+        for (DiskLruCache segment : segments) {
+            List<Entry> order = segment.accessOrder();
+            orders.add(order);
+            total += order.size();
+        }
+        final List<Iterator<EntryInfo>> iterators =
+                new ArrayList<Iterator<EntryInfo>>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            iterators.add(segments[i].new EntryIterator(orders.get(i), total));
+        }
+        return new Iterator<EntryInfo>() {
+            private int segment;
+
+            @Override public boolean hasNext() {
+                while (segment < iterators.size()) {
+                    if (iterators.get(segment).hasNext()) {
+                        return true;
+                    }
+                    segment++;
+                }
+                return false;
+            }
+
+            @Override public EntryInfo next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterators.get(segment).next();
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Returns a copy of the entries, least recently used first. */
+    private List<Entry> accessOrder() {
+        List<Entry> order;
+        synchronized (this) {
+            checkNotClosed();
+            order = lruEntries.values();
+        }
+        if (!readOptimized) {
+            return order;
+        }
+        // entries read since the last sweep are the most recently used
+        List<Entry> sorted = new ArrayList<Entry>(order.size());
+        List<Entry> accessed = new ArrayList<Entry>();
+        for (Entry entry : order) {
+            if (entry.accessed) {
+                accessed.add(entry);
+            } else {
+                sorted.add(entry);
+            }
+        }
+        sorted.addAll(accessed);
+        return sorted;
+    }
+
+    /**
+     * Returns the number of independent segments of this cache; 1 if the
+     * cache is not segmented.
+     */
+    public int segmentCount() {
+        return segments != null ? segments.length : 1;
+    }
+
+    private DiskLruCache segmentFor(String key) {
+        // spread the hash so that keys sharing low bits still distribute
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private synchronized CommitTicket completeEdit(Editor editor, boolean success)
+            throws IOException {
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+
+        // if this edit is creating the entry for the first time, or encoding it
+        // differently, every index must have a value
+        if (success && (!entry.readable || editor.codec != entry.codec)) {
+            for (int i = 0; i < valueCount; i++) {
+                boolean written = packedValues != null
+                        ? editor.buffers[i] != null : entry.getDirtyFile(i).exists();
+                if (!written) {
+                    editor.abort();
+                    throw new IllegalStateException("edit didn't create file " + i);
+                }
+            }
+        }
+
+        if (journalWriter.failed()) {
+            // it would reject this edit's records after the entry has changed
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                releaseEditor(editor);
+                throw e;
+            }
+        }
+
+        long[] appended = packedValues != null && success ? appendValues(editor) : null;
+
+        beginUpdate(entry);
+        try {
+            if (packedValues != null) {
+                boolean compact = false;
+                if (success) {
+                    if (entry.locations == null) {
+                        entry.locations = new long[valueCount];
+                    }
+                    for (int i = 0; i < valueCount; i++) {
+                        ValueBuffer buffer = editor.buffers[i];
+                        if (buffer == null) {
+                            continue;
+                        }
+                        if (entry.readable) {
+                            compact |= packedValues.release(entry.locations[i], entry.lengths[i]);
+                        }
+                        entry.locations[i] = appended[i];
+                        size = size - entry.lengths[i] + buffer.size();
+                        entry.lengths[i] = buffer.size();
+                    }
+                }
+                scheduleCompactionIf(compact);
+            }
+
+            for (int i = 0; i < valueCount && packedValues == null; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        if (unsyncedFiles != null) {
+                            unsyncedFiles.add(clean);
+                        }
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                editor.progress[i].complete(success,
+                        packedValues == null ? entry.getCleanFile(i) : null);
+            }
+
+            redundantOpCount++;
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                writeJournalRecord(journalWriter, OP_CLEAN, entry);
+                if (success && editor.metadataChanged) {
+                    entry.metadata = editor.metadata;
+                    writeJournalRecord(journalWriter, OP_META, entry);
+                    writeMetadata(journalWriter, entry.metadata);
+                    scheduleExpiry(entry);
+                }
+                if (success && editor.codec != entry.codec) {
+                    entry.codec = editor.codec;
+                    writeJournalRecord(journalWriter, OP_CODEC, entry);
+                    writeVarint(journalWriter, entry.codec.id());
+                }
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                    long entrySize = 0;
+                    for (long length : entry.lengths) {
+                        entrySize += length;
+                    }
+                    evictionPolicy.recordWrite(entry.key(), entrySize);
+                }
+            } else {
+                lruEntries.remove(entry.keyHigh, entry.keyLow);
+                writeJournalRecord(journalWriter, OP_REMOVE, entry);
+            }
+        } finally {
+            endUpdate(entry);
+        }
+
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        scheduleEvictionIfRequired();
+        scheduleCheckpointIfRequired();
+        scheduleExpirySweepIfRequired();
+        scheduleSyncIfRequired();
+        return new CommitTicket(journalGeneration, journalWriter.position());
+    }
+
+    /**
+     * Ends the edit of {@code editor} without changing the entry or writing
+     * to the journal, which can't take records. Journal recovery rebuilds the
+     * journal from the entries in memory.
+     */
+    private void releaseEditor(Editor editor) {
+        Entry entry = editor.entry;
+        for (int i = 0; i < valueCount; i++) {
+            if (packedValues == null) {
+                entry.getDirtyFile(i).delete();
+            }
+            editor.progress[i].complete(false, null);
+        }
+        entry.currentEditor = null;
+        if (!entry.readable) {
+            lruEntries.remove(entry.keyHigh, entry.keyLow);
+        }
+    }
+
+    /**
+     * Appends the values written by {@code editor} to the packs and returns
+     * their locations. If that fails, the values appended so far are released
+     * and the edit is aborted before the failure is rethrown, so that the
+     * entry keeps its previous values and can be edited again.
+     */
+    private long[] appendValues(Editor editor) throws IOException {
+        long[] locations = new long[valueCount];
+        int appended = 0;
+        try {
+            for (; appended < valueCount; appended++) {
+                ValueBuffer buffer = editor.buffers[appended];
+                if (buffer != null) {
+                    locations[appended] = packedValues.append(buffer.buffer(), 0, buffer.size());
+                }
+            }
+            if (syncsValues()) {
+                packedValues.sync();
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < appended; i++) {
+                if (editor.buffers[i] != null) {
+                    packedValues.release(locations[i], editor.buffers[i].size());
+                }
+            }
+            completeEdit(editor, false);
+            throw e;
+        }
+        return locations;
+    }
+
+    /** Starts evicting in the background if the size passed the high watermark. */
+    private void scheduleEvictionIfRequired() {
+        if (size > evictionHighWatermark && !evictionPending) {
+            evictionPending = true;
+            executorService.submit(evictionCallable);
+        }
+    }
+
+    /**
+     * Evicts a batch of entries, and schedules the next batch if the size is
+     * still above the low watermark. Batches are spaced out to keep to
+     * {@link Params#evictionsPerSecond}, unless the size is above the ceiling
+     * and commits are waiting.
+     */
+    private synchronized void evictBatch() throws IOException {
+        if (journalWriter == null) {
+            evictionPending = false;
+            notifyAll();
+            return; // closed
+        }
+        int rate = params.evictionsPerSecond;
+        boolean limited = rate > 0 && size <= evictionCeiling;
+        int batchSize = limited ? Math.min(rate, EVICTION_BATCH_SIZE) : EVICTION_BATCH_SIZE;
+        int evicted = trimToSize(evictionLowWatermark, batchSize);
+        if (evicted > 0) {
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+            scheduleCheckpointIfRequired();
+        }
+        notifyAll();
+        if (size <= evictionLowWatermark || evicted == 0) {
+            // done, or every entry left is being edited; the next commit retries
+            evictionPending = false;
+        } else if (limited) {
+            evictionDelayed.set(true);
+            JournalWriter.schedule(new Runnable() {
+                @Override public void run() {
+                    resumeEviction();
+                }
+            }, evicted * 1000L / rate);
+        } else {
+            executorService.submit(evictionCallable);
+        }
+    }
+
+    /** Runs the next batch of eviction now if it is waiting to keep to the rate. */
+    private void resumeEviction() {
+        if (evictionDelayed.compareAndSet(true, false)) {
+            executorService.submit(evictionCallable);
+        }
+    }
+
+    /**
+     * Waits while the size is above the ceiling, until eviction brings it
+     * back under or finds nothing more to evict.
+     */
+    private synchronized void awaitEviction() {
+        if (size <= evictionCeiling || journalWriter == null) {
+            return;
+        }
+        scheduleEvictionIfRequired();
+        resumeEviction(); // without waiting out the rate
+        try {
+            while (size > evictionCeiling && evictionPending) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // the commit itself is done
+        }
+    }
+
+    /** Makes sure a periodic sync follows the commits since the last one. */
+    private void scheduleSyncIfRequired() {
+        if (params.durability == DURABILITY_PERIODIC && !syncPending) {
+            syncPending = true;
+            JournalWriter.schedule(new Runnable() {
+                @Override public void run() {
+                    executorService.submit(syncCallable);
+                }
+            }, params.syncIntervalMillis);
+        }
+    }
+
+    /**
+     * Syncs the values committed since the last periodic sync, then the
+     * journal. Files are synced without the cache's lock.
+     */
+    private void syncCommitted() throws IOException {
+        List<File> files;
+        JournalWriter writer;
+        synchronized (this) {
+            syncPending = false;
+            if (journalWriter == null) {
+                return; // closed
+            }
+            files = unsyncedFiles;
+            if (files != null) {
+                unsyncedFiles = new ArrayList<File>();
+            }
+            writer = journalWriter;
+            if (packedValues != null) {
+                packedValues.sync();
+            }
+        }
+        for (int i = 0; files != null && i < files.size(); i++) {
+            syncFile(files.get(i));
+        }
+        writer.sync();
+    }
+
+    /** Syncs {@code file} to the storage device, unless it was deleted meanwhile. */
+    private static void syncFile(File file) throws IOException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException removed) {
+            return;
+        }
+        try {
+            in.getFD().sync();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Makes sure the sweep runs once {@code entry} expires. */
+    private void scheduleExpiry(Entry entry) {
+        if (entry.metadata != null && entry.metadata.expiresAt != 0) {
+            nextExpiryMillis = Math.min(nextExpiryMillis, entry.metadata.expiresAt);
+        }
+    }
+
+    private void scheduleExpirySweepIfRequired() {
+        if (!expirySweepPending && System.currentTimeMillis() >= nextExpiryMillis) {
+            expirySweepPending = true;
+            executorService.submit(expirySweepCallable);
+        }
+    }
+
+    /**
+     * Removes the expired entries. Sweeps are at least a minute apart, so
+     * entries expiring in between are only refused by {@link #get} until the
+     * next one.
+     */
+    private void removeExpired() throws IOException {
+        final long MIN_SWEEP_INTERVAL_MILLIS = 60 * 1000;
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (Entry entry : lruEntries.values()) {
+            if (entry.metadata == null || entry.metadata.expiresAt == 0) {
+                continue;
+            }
+            if (entry.metadata.isExpired(now) && entry.currentEditor == null) {
+                remove(entry.key());
+            } else {
+                next = Math.min(next, entry.metadata.expiresAt);
+            }
+        }
+        nextExpiryMillis = next == Long.MAX_VALUE
+                ? next : Math.max(next, now + MIN_SWEEP_INTERVAL_MILLIS);
+    }
+
+    private void scheduleCompactionIf(boolean compact) {
+        if (compact && !compactionPending) {
+            compactionPending = true;
+            executorService.submit(compactionCallable);
+        }
+    }
+
+    /**
+     * Moves the live values out of packs that are mostly garbage and deletes
+     * those packs. Values are moved one entry at a time so that the cache
+     * stays available meanwhile.
+     */
+    private void compactPackedValues() throws IOException {
+        List<Integer> candidates;
+        synchronized (this) {
+            compactionPending = false;
+            if (journalWriter == null) {
+                return; // closed
+            }
+            candidates = packedValues.compactionCandidates();
+        }
+
+        for (int packId : candidates) {
+            List<Entry> residents = new ArrayList<Entry>();
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return;
+                }
+                for (Entry entry : lruEntries) {
+                    if (entry.isPackedIn(packId)) {
+                        residents.add(entry);
+                    }
+                }
+            }
+
+            for (Entry entry : residents) {
+                synchronized (this) {
+                    // skip entries that were removed or are being edited meanwhile
+                    if (journalWriter == null) {
+                        return;
+                    }
+                    if (entry.currentEditor != null || !entry.isPackedIn(packId)) {
+                        continue;
+                    }
+                    beginUpdate(entry);
+                    try {
+                        for (int i = 0; i < valueCount; i++) {
+                            if (PackedValueStore.packId(entry.locations[i]) == packId) {
+                                entry.locations[i] =
+                                        packedValues.move(entry.locations[i], entry.lengths[i]);
+                            }
+                        }
+                    } finally {
+                        endUpdate(entry);
+                    }
+                    redundantOpCount++;
+                    writeJournalRecord(journalWriter, OP_CLEAN, entry);
+                }
+            }
+
+            // the pack may only go once the journal no longer points into it
+            long generation;
+            long position;
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return;
+                }
+                generation = journalGeneration;
+                position = journalWriter.position();
+            }
+            if (syncsValues()) {
+                packedValues.sync();
+            }
+            awaitJournal(generation, position, syncsJournal());
+            synchronized (this) {
+                packedValues.deletePackIfUnused(packId);
+            }
+        }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= lruEntries.size();
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed. Entries
+     * actively being edited cannot be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        Migration pending = migration;
+        if (pending != null) {
+            pending.keyRemoved(key); // so that the migration doesn't bring it back
+        }
+        if (segments != null) {
+            return segmentFor(key).remove(key);
+        }
+        synchronized (this) {
+            checkNotClosed();
+            validateKey(key);
+            if (!removeEntry(key)) {
+                return false;
+            }
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+            scheduleCheckpointIfRequired();
+            return true;
+        }
+    }
+
+    /**
+     * Removes the entries named by {@code keys} that exist and can be removed.
+     * Rather than once per key, this takes the lock once per segment, and
+     * journals the removals together.
+     *
+     * @return the number of entries removed.
+     */
+    public int removeAll(Collection<String> keys) throws IOException {
+        if (segments != null) {
+            int removed = 0;
+            for (Map.Entry<DiskLruCache, List<String>> group : groupBySegment(keys).entrySet()) {
+                removed += group.getKey().removeAll(group.getValue());
+            }
+            return removed;
+        }
+        synchronized (this) {
+            checkNotClosed();
+            int removed = 0;
+            try {
+                for (String key : keys) {
+                    validateKey(key);
+                    if (removeEntry(key)) {
+                        removed++;
+                    }
+                }
+            } finally {
+                if (removed > 0) {
+                    if (journalRebuildRequired()) {
+                        executorService.submit(cleanupCallable);
+                    }
+                    scheduleCheckpointIfRequired();
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes the entry named {@code key} and journals it, if it exists and
+     * isn't being edited. Must be called with the cache's lock held.
+     */
+    private boolean removeEntry(String key) throws IOException {
+        Entry entry = getEntry(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+
+        beginUpdate(entry);
+        try {
+            boolean compact = false;
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.locations != null) {
+                    compact |= packedValues.release(entry.locations[i], entry.lengths[i]);
+                    entry.locations[i] = -1;
+                } else {
+                    File file = entry.getCleanFile(i);
+                    if (!file.delete()) {
+                        throw new IOException("failed to delete " + file);
+                    }
+                }
+                size -= entry.lengths[i];
+                entry.lengths[i] = 0;
+            }
+            scheduleCompactionIf(compact);
+
+            redundantOpCount++;
+            writeJournalRecord(journalWriter, OP_REMOVE, entry);
+            lruEntries.remove(entry.keyHigh, entry.keyLow);
+            evictionPolicy.recordRemoval(key);
+        } finally {
+            endUpdate(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        if (segments != null) {
+            synchronized (this) {
+                return segmentsClosed;
+            }
+        }
+        return journalWriter == null;
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    /**
+     * Force buffered operations to the filesystem.
+     */
+    public void flush() throws IOException {
+        if (segments != null) {
+            if (isClosed()) {
+                throw new IllegalStateException("cache is closed");
+            }
+            for (DiskLruCache segment : segments) {
+                segment.flush();
+            }
+            return;
+        }
+        synchronized (this) {
+            checkNotClosed();
+            drainBufferedReads();
+            trimToSize(maxSize, Integer.MAX_VALUE);
+            journalWriter.flush();
+        }
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    public synchronized void close() throws IOException {
+        if (segments != null) {
+            if (segmentsClosed) {
+                return; // already closed
+            }
+            segmentsClosed = true;
+            IOException failure = null;
+            for (DiskLruCache segment : segments) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return;
+        }
+        if (journalWriter == null) {
+            return; // already closed
+        }
+        closed = true;
+        if (readOptimized) {
+            drainBufferedReads();
+        }
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize(maxSize, Integer.MAX_VALUE);
+        notifyAll(); // commits waiting for eviction go on
+        if (journalWriter.failed()) {
+            rebuildJournal();
+        }
+        if (readOptimized) {
+            // reads without the lock fall back to the locked path, which fails
+            for (Entry entry : lruEntries) {
+                entry.published = null;
+            }
+        }
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            // the journal alone is enough to reopen the cache
+        }
+        if (params.durability != DURABILITY_NONE) {
+            if (unsyncedFiles != null) {
+                for (File file : unsyncedFiles) {
+                    syncFile(file);
+                }
+            }
+            if (packedValues != null) {
+                packedValues.sync();
+            }
+            journalWriter.sync();
+        }
+        journalWriter.close();
+        journalWriter = null;
+        if (packedValues != null) {
+            packedValues.close();
+        }
+        cleanShutdownFile.createNewFile();
+    }
+
+    /**
+     * Evicts entries until the size is at most {@code targetSize}, evicting
+     * no more than {@code limit}. Returns the number evicted.
+     */
+    private int trimToSize(long targetSize, int limit) throws IOException {
+        int evicted = 0;
+        int failures = 0;
+        while (size > targetSize && evicted < limit && failures < 2) {
+            String victim = evictionPolicy.selectVictim(new EvictionOrder());
+            if (victim == null) {
+                break; // every entry is being edited
+            }
+            if (!removeEntry(victim)) {
+                failures++; // being edited; the policy has moved on from it
+            } else {
+                failures = 0;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values. This will delete
+     * all files in the cache directory including files that weren't created by
+     * the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        deleteContents(directory);
+    }
+
+    private void validateKey(String key) {
+        if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+            throw new IllegalArgumentException(
+                    "keys must not contain spaces or newlines: \"" + key + "\"");
+        }
+    }
+
+    private static String inputStreamToString(InputStream in) throws IOException {
+        return readFully(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * The key, value lengths and place in the order of use of an entry, as
+     * returned by {@link #entries}.
+     */
+    public static final class EntryInfo {
+        private final String key;
+        private final long[] lengths;
+        private final long lastAccessOrder;
+
+        private EntryInfo(String key, long[] lengths, long lastAccessOrder) {
+            this.key = key;
+            this.lengths = lengths;
+            this.lastAccessOrder = lastAccessOrder;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /** Returns the stored length of the value for {@code index}. */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the place of the entry in the order of use when the walk
+         * started: 0 for the least recently used entry, and higher for
+         * entries used more recently.
+         */
+        public long getLastAccessOrder() {
+            return lastAccessOrder;
+        }
+    }
+
+    /**
+     * A snapshot of the values for an entry.
+     */
+    public final class Snapshot implements Closeable {
+        private final String key;
+        private final long sequenceNumber;
+        private final InputStream[] ins;
+        private final long[] lengths;
+        private final Metadata metadata;
+        private final Codec codec;
+        /** The streams decoding the values, created as they are asked for. */
+        private final InputStream[] decoded;
+        /** The channels of packed values, opened as they are asked for. */
+        private FileChannel[] channels;
+
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths,
+                Metadata metadata, Codec codec) {
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.ins = ins;
+            this.lengths = lengths;
+            this.metadata = metadata;
+            this.codec = codec;
+            this.decoded = codec != NONE ? new InputStream[ins.length] : null;
+        }
+
+        /**
+         * Returns the metadata last set on this entry, or null if none was.
+         */
+        public String getMetadata() {
+            return metadata != null ? metadata.value : null;
+        }
+
+        /**
+         * Returns the time in milliseconds since the epoch at which this entry
+         * expires, or 0 if it doesn't.
+         */
+        public long getExpiresAt() {
+            return metadata != null ? metadata.expiresAt : 0;
+        }
+
+        /**
+         * Returns an editor for this snapshot's entry, or null if either the
+         * entry has changed since this snapshot was created or if another edit
+         * is in progress.
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.edit(key, sequenceNumber);
+        }
+
+        /**
+         * Returns the codec the values of this entry are stored with. Only
+         * the streams of this snapshot decode them; channels and mappings
+         * give access to the stored bytes.
+         */
+        public Codec getCodec() {
+            return codec;
+        }
+
+        /**
+         * Returns the unbuffered stream with the value for {@code index}.
+         */
+        public InputStream getInputStream(int index) {
+            if (decoded == null) {
+                return ins[index];
+            }
+            if (decoded[index] == null) {
+                decoded[index] = codec.decode(ins[index]);
+            }
+            return decoded[index];
+        }
+
+        /**
+         * Returns the string value for {@code index}.
+         */
+        public String getString(int index) throws IOException {
+            return inputStreamToString(getInputStream(index));
+        }
+
+        /**
+         * Returns the length in bytes of the value for {@code index} as
+         * stored, which is its encoded length if it is encoded.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns a channel of the file holding the value for {@code index},
+         * which must only be read. The value starts at {@link #getOffset} in
+         * it; with packed storage the file also holds other values.
+         *
+         * <p>The channel belongs to this snapshot, and is closed when this
+         * snapshot is closed. Interrupting a thread using it, or closing it,
+         * closes it for this snapshot only. Its position is shared with the
+         * value's input stream, so use positional reads only. A packed value
+         * whose pack has been compacted away since this snapshot was taken
+         * can only be read through its stream; this throws an IOException.
+         */
+        public FileChannel getChannel(int index) throws IOException {
+            InputStream in = ins[index];
+            if (!(in instanceof PackedValueStore.PackInputStream)) {
+                return ((FileInputStream) in).getChannel();
+            }
+            if (channels == null) {
+                channels = new FileChannel[ins.length];
+            }
+            if (channels[index] == null) {
+                File pack = ((PackedValueStore.PackInputStream) in).packFile();
+                channels[index] = new RandomAccessFile(pack, "r").getChannel();
+            }
+            return channels[index];
+        }
+
+        /**
+         * Returns the offset of the value for {@code index} in its
+         * {@link #getChannel channel}.
+         */
+        public long getOffset(int index) {
+            InputStream in = ins[index];
+            if (in instanceof PackedValueStore.PackInputStream) {
+                return ((PackedValueStore.PackInputStream) in).valueOffset();
+            }
+            return 0;
+        }
+
+        /**
+         * Maps the value for {@code index} into memory read-only. The buffer
+         * stays readable after this snapshot is closed, and isn't affected by
+         * later edits of the entry. Mapping is only worthwhile for larger
+         * values; small ones are cheaper to read.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            return getChannel(index).map(FileChannel.MapMode.READ_ONLY,
+                    getOffset(index), getLength(index));
+        }
+
+        /**
+         * Writes the value for {@code index} to {@code target}, letting the
+         * kernel copy the bytes where it can instead of passing them through
+         * the Java heap. Returns the number of bytes written.
+         */
+        public long transferTo(int index, WritableByteChannel target) throws IOException {
+            FileChannel channel = getChannel(index);
+            long offset = getOffset(index);
+            long length = getLength(index);
+            long transferred = 0;
+            while (transferred < length) {
+                long count = channel.transferTo(offset + transferred, length - transferred, target);
+                if (count <= 0) {
+                    break; // the file was truncated
+                }
+                transferred += count;
+            }
+            return transferred;
+        }
+
+        @Override public void close() {
+            if (decoded != null) {
+                for (InputStream in : decoded) {
+                    closeQuietly(in);
+                }
+            }
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            if (channels != null) {
+                for (FileChannel channel : channels) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Edits the values for an entry.
+     */
+    public final class Editor {
+        private final Entry entry;
+        private final ValueBuffer[] buffers;
+        private final EditProgress[] progress;
+        private boolean hasErrors;
+        private long dirtyGeneration;
+        private long dirtyPosition;
+        private Metadata metadata;
+        private boolean metadataChanged;
+        private Codec codec;
+        /** The streams encoding the values written, finished by the commit. */
+        private final OutputStream[] encoders;
+        /** The streams writing the values to files, if not packed. */
+        private final FaultHidingOutputStream[] files;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+            this.buffers = packedValues != null ? new ValueBuffer[valueCount] : null;
+            this.progress = new EditProgress[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                progress[i] = new EditProgress();
+            }
+            this.metadata = entry.metadata;
+            this.codec = entry.readable ? entry.codec : params.codec;
+            this.encoders = new OutputStream[valueCount];
+            this.files = packedValues == null ? new FaultHidingOutputStream[valueCount] : null;
+        }
+
+        /**
+         * Stores the values written by this edit with {@code codec}, which
+         * must be {@link #NONE} or the codec of the cache's {@link Params}.
+         * An edit keeps the codec of the entry it changes, and a new entry
+         * gets the cache's; if this changes it, every value must be written.
+         * Must be called before any value is written.
+         */
+        public void setCodec(Codec codec) {
+            if (codec != NONE && codec != params.codec) {
+                throw new IllegalArgumentException("codec isn't one this cache was opened with");
+            }
+            synchronized (DiskLruCache.this) {
+                for (EditProgress value : progress) {
+                    if (value.attempt != 0) {
+                        throw new IllegalStateException("values were written already");
+                    }
+                }
+                this.codec = codec;
+            }
+        }
+
+        /**
+         * Sets the metadata of the entry to {@code value}, at most 64 KiB of
+         * UTF-8, when this edit is committed. Values that aren't written keep
+         * their contents, so an edit may only update the metadata.
+         */
+        public void setMetadata(String value) {
+            if (value != null && value.getBytes(UTF_8).length > MAX_METADATA_LENGTH) {
+                throw new IllegalArgumentException(
+                        "metadata is longer than " + MAX_METADATA_LENGTH);
+            }
+            synchronized (DiskLruCache.this) {
+                metadata = new Metadata(value, metadata != null ? metadata.expiresAt : 0);
+                metadataChanged = true;
+            }
+        }
+
+        /**
+         * Makes the entry expire at {@code expiresAtMillis}, in milliseconds
+         * since the epoch, when this edit is committed; 0 if it shouldn't.
+         */
+        public void setExpiresAt(long expiresAtMillis) {
+            if (expiresAtMillis < 0) {
+                throw new IllegalArgumentException("expiresAtMillis < 0");
+            }
+            synchronized (DiskLruCache.this) {
+                metadata = new Metadata(metadata != null ? metadata.value : null, expiresAtMillis);
+                metadataChanged = true;
+            }
+        }
+
+        /**
+         * Returns an unbuffered input stream to read the last committed value,
+         * or null if no value has been committed.
+         */
+        public InputStream newInputStream(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                return entry.codec.decode(entry.newInputStream(index));
+            }
+        }
+
+        /**
+         * Returns the last committed value as a string, or null if no value
+         * has been committed.
+         */
+        public String getString(int index) throws IOException {
+            InputStream in = newInputStream(index);
+            return in != null ? inputStreamToString(in) : null;
+        }
+
+        /**
+         * Returns a new unbuffered output stream to write the value at
+         * {@code index}. If the underlying output stream encounters errors
+         * when writing to the filesystem, this edit will be aborted when
+         * {@link #commit} is called. The returned output stream does not throw
+         * IOExceptions.
+         */
+        public OutputStream newOutputStream(int index) throws IOException {
+            if (packedValues != null) {
+                // buffered in memory until the commit appends it to a pack
+                synchronized (DiskLruCache.this) {
+                    if (entry.currentEditor != this) {
+                        throw new IllegalStateException();
+                    }
+                    buffers[index] = new ValueBuffer(progress[index]);
+                    progress[index].start(null, buffers[index], codec);
+                    return encode(index, buffers[index]);
+                }
+            }
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                FileOutputStream file;
+                try {
+                    file = new FileOutputStream(dirty);
+                } catch (FileNotFoundException e) {
+                    // shards are created with their first file
+                    if (!dirty.getParentFile().mkdirs()) {
+                        throw e;
+                    }
+                    file = new FileOutputStream(dirty);
+                }
+                files[index] = new FaultHidingOutputStream(file, progress[index], syncsValues());
+                progress[index].start(dirty, null, codec);
+                return encode(index, files[index]);
+            }
+        }
+
+        private OutputStream encode(int index, OutputStream out) {
+            if (codec == NONE) {
+                encoders[index] = null;
+                return out;
+            }
+            encoders[index] = new FaultHidingOutputStream(codec.encode(out), null, false);
+            return encoders[index];
+        }
+
+        /**
+         * Completes the encoding of the values written, if the caller hasn't,
+         * and if {@code sync} is true, closes the files of the values, which
+         * syncs them.
+         */
+        private void finishWriting(boolean sync) {
+            for (OutputStream encoder : encoders) {
+                if (encoder != null) {
+                    closeQuietly(encoder);
+                }
+            }
+            for (int i = 0; i < valueCount && sync && files != null; i++) {
+                if (files[i] != null) {
+                    files[i].close(); // syncs the file unless the caller closed it already
+                }
+            }
+        }
+
+        /**
+         * Sets the value at {@code index} to {@code value}.
+         */
+        public void set(int index, String value) throws IOException {
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(newOutputStream(index), UTF_8);
+                writer.write(value);
+            } finally {
+                closeQuietly(writer);
+            }
+        }
+
+        /**
+         * Commits this edit so it is visible to readers.  This releases the
+         * edit lock so another edit may be started on the same key.
+         *
+         * @return a ticket to wait on if the commit must be recorded in the
+         *     journal before going on
+         */
+        public CommitTicket commit() throws IOException {
+            finishWriting(syncsValues());
+            CommitTicket ticket;
+            if (hasErrors) {
+                completeEdit(this, false);
+                remove(entry.key()); // the previous entry is stale
+                synchronized (DiskLruCache.this) {
+                    ticket = new CommitTicket(journalGeneration, journalWriter.position());
+                }
+            } else {
+                if (packedValues == null) {
+                    try {
+                        // the DIRTY record must be committed before the files are renamed
+                        awaitJournal(dirtyGeneration, dirtyPosition, false);
+                    } catch (IOException e) {
+                        // the writer failed; completeEdit rebuilds the journal first
+                    }
+                }
+                ticket = completeEdit(this, true);
+            }
+            awaitEviction();
+            if (syncsJournal()) {
+                ticket.await();
+            }
+            return ticket;
+        }
+
+        /**
+         * Aborts this edit. This releases the edit lock so another edit may be
+         * started on the same key.
+         */
+        public void abort() throws IOException {
+            finishWriting(false);
+            completeEdit(this, false);
+        }
+
+        private class FaultHidingOutputStream extends FilterOutputStream {
+            /** Null if the stream written to tracks the progress itself. */
+            private final EditProgress progress;
+            /** Sync the file written to when closing it. */
+            private final boolean sync;
+            private boolean closed;
+
+            private FaultHidingOutputStream(OutputStream out, EditProgress progress, boolean sync) {
+                super(out);
+                this.progress = progress;
+                this.sync = sync;
+            }
+
+            @Override public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                    if (progress != null) {
+                        progress.advance(1);
+                    }
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                    if (progress != null) {
+                        progress.advance(length);
+                    }
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (sync) {
+                        ((FileOutputStream) out).getFD().sync();
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterates over the keys of the entries that may be evicted, in the order
+     * they should be: least recently used first or, in a read-optimized cache,
+     * in the order of the clock sweep. Entries being edited are skipped.
+     *
+     * <p>The clock sweep gives entries that were read since it last passed
+     * them a second chance: it clears their access bit and moves them to the
+     * tail of the queue. It also moves the entries it returns there, so a
+     * policy passing over an entry doesn't see it again straight away.
+     */
+    private final class EvictionOrder implements EvictionPolicy.Order {
+        private final Iterator<Entry> lru = readOptimized ? null : lruEntries.iterator();
+        private int sweepLimit = 2 * lruEntries.size();
+        private String next;
+
+        @Override public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (lru != null) {
+                while (lru.hasNext()) {
+                    Entry entry = lru.next();
+                    if (entry.currentEditor == null) {
+                        next = entry.key();
+                        return true;
+                    }
+                }
+                return false;
+            }
+            while (sweepLimit-- > 0) {
+                Entry entry = lruEntries.eldest();
+                lruEntries.moveToTail(entry.keyHigh, entry.keyLow);
+                if (entry.accessed || entry.currentEditor != null) {
+                    entry.accessed = false;
+                    continue;
+                }
+                next = entry.key();
+                return true;
+            }
+            return false;
+        }
+
+        @Override public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public Iterator<String> peek() {
+            final Iterator<Entry> entries = lruEntries.iterator();
+            return new Iterator<String>() {
+                private String next;
+
+                @Override public boolean hasNext() {
+                    while (next == null && entries.hasNext()) {
+                        Entry entry = entries.next();
+                        if (entry.currentEditor == null && !(readOptimized && entry.accessed)) {
+                            next = entry.key();
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String result = next;
+                    next = null;
+                    return result;
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override public boolean isEvictable(String key) {
+            Entry entry = peekEntry(key);
+            return entry != null && entry.readable && entry.currentEditor == null;
+        }
+    }
+
+    /** Walks a copy of the order of the entries, reading them a batch at a time. */
+    private final class EntryIterator implements Iterator<EntryInfo> {
+        private final List<Entry> order;
+        /** The number of entries the places in the order are scaled to. */
+        private final long scale;
+        private int position;
+        private final List<EntryInfo> batch = new ArrayList<EntryInfo>();
+        private int batchPosition;
+
+        private EntryIterator(List<Entry> order, long scale) {
+            this.order = order;
+            this.scale = scale;
+        }
+
+        @Override public boolean hasNext() {
+            while (batchPosition == batch.size()) {
+                if (position == order.size()) {
+                    return false;
+                }
+                readBatch();
+            }
+            return true;
+        }
+
+        private void readBatch() {
+            final int ENTRY_BATCH_SIZE = 64;
+            batch.clear();
+            batchPosition = 0;
+            int end = Math.min(order.size(), position + ENTRY_BATCH_SIZE);
+            long now = System.currentTimeMillis();
+            synchronized (DiskLruCache.this) {
+                if (journalWriter == null) {
+                    position = order.size(); // closed
+                    return;
+                }
+                for (; position < end; position++) {
+                    Entry entry = order.get(position);
+                    if (!entry.readable || entry.isExpired(now)
+                            || lruEntries.peek(entry.keyHigh, entry.keyLow) != entry) {
+                        continue; // removed or expired meanwhile
+                    }
+                    batch.add(new EntryInfo(entry.key(), entry.lengths.clone(),
+                            position * scale / order.size()));
+                }
+            }
+        }
+
+        @Override public EntryInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(batchPosition++);
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Decides which entries a cache evicts once it grows beyond its maximum
+     * size. Each cache, or segment of a segmented cache, has a policy of its
+     * own, which it only calls with its lock held.
+     */
+    public interface EvictionPolicy {
+        /**
+         * Called when the entry for {@code key} is read. Reads served without
+         * the lock are reported later, in batches, and may be dropped.
+         */
+        void recordRead(String key);
+
+        /** Called when an edit of the entry for {@code key} is committed. */
+        void recordWrite(String key, long size);
+
+        /** Called when the entry for {@code key} is removed or evicted. */
+        void recordRemoval(String key);
+
+        /**
+         * Returns the key of the entry to evict next, or null to evict none.
+         * The entry must not be being edited; see {@link Order#isEvictable}.
+         *
+         * @param evictionOrder the keys of the entries that may be evicted,
+         *     least recently used first
+         */
+        String selectVictim(Order evictionOrder);
+
+        /**
+         * The entries a cache may evict. Iterating goes through them in the
+         * order they should be evicted and, in a read-optimized cache, runs
+         * the clock sweep, which gives the entries read since it last passed
+         * them a second chance.
+         */
+        interface Order extends Iterator<String> {
+            /**
+             * Returns the keys of the entries that may be evicted, least
+             * recently used first, without running the clock sweep. In a
+             * read-optimized cache the entries the sweep would give a second
+             * chance are left out.
+             */
+            Iterator<String> peek();
+
+            /**
+             * Returns true if the entry for {@code key} is readable and isn't
+             * being edited.
+             */
+            boolean isEvictable(String key);
+        }
+
+        /** Creates the eviction policies of caches. */
+        interface Factory {
+            /**
+             * Returns a new policy for a cache of {@code maxSize} bytes: the
+             * size to which eviction brings the cache down, which is its low
+             * watermark.
+             */
+            EvictionPolicy create(long maxSize);
+        }
+    }
+
+    /** Evicts the least recently used entries. This is the default. */
+    public static final EvictionPolicy.Factory LRU = new EvictionPolicy.Factory() {
+        @Override public EvictionPolicy create(long maxSize) {
+            return new EvictionPolicy() {
+                @Override public void recordRead(String key) {
+                }
+
+                @Override public void recordWrite(String key, long size) {
+                }
+
+                @Override public void recordRemoval(String key) {
+                }
+
+                @Override public String selectVictim(Order evictionOrder) {
+                    return evictionOrder.hasNext() ? evictionOrder.next() : null;
+                }
+            };
+        }
+    };
+
+    /**
+     * Admits entries to the bulk of the cache in the manner of W-TinyLFU: a
+     * new entry only displaces the least recently used one if it has been used
+     * more often recently. This keeps entries used over and over from being
+     * flushed by a one-off pass over many others.
+     */
+    public static final EvictionPolicy.Factory TINY_LFU = new EvictionPolicy.Factory() {
+        @Override public EvictionPolicy create(long maxSize) {
+            return new TinyLfuPolicy(maxSize);
+        }
+    };
+
+    /**
+     * Encodes the values of a cache's entries as they are stored, and decodes
+     * them as they are read. A codec is identified in the journal by its id;
+     * ids below 16 are reserved for the codecs of this class.
+     */
+    public interface Codec {
+        int id();
+
+        /**
+         * Returns a stream encoding the bytes written to it into {@code out}.
+         * Closing it completes the encoding and closes {@code out}.
+         */
+        OutputStream encode(OutputStream out);
+
+        /**
+         * Returns a stream decoding the bytes read from {@code in}. Closing it
+         * closes {@code in}.
+         */
+        InputStream decode(InputStream in);
+    }
+
+    /** Stores values as they are written. This is the default. */
+    public static final Codec NONE = new Codec() {
+        @Override public int id() {
+            return 0;
+        }
+
+        @Override public OutputStream encode(OutputStream out) {
+            return out;
+        }
+
+        @Override public InputStream decode(InputStream in) {
+            return in;
+        }
+    };
+
+    /**
+     * Compresses values with deflate. Suits text and serialized objects, but
+     * not values that are compressed already, such as JPEG images.
+     */
+    public static final Codec DEFLATE = new DeflateCodec(null);
+
+    /**
+     * Returns a codec compressing values with deflate, primed with
+     * {@code dictionary}: bytes that values commonly contain, most common
+     * last. This lets small values, which deflate alone barely shrinks,
+     * compress well. Values are only readable with the same dictionary.
+     */
+    public static Codec deflate(byte[] dictionary) {
+        if (dictionary == null) {
+            throw new NullPointerException("dictionary == null");
+        }
+        return new DeflateCodec(dictionary);
+    }
+
+    /**
+     * Marks the journal records of a commit, so that callers needing them on
+     * the filesystem can wait for them.
+     */
+    public final class CommitTicket {
+        private final long generation;
+        private final long position;
+
+        private CommitTicket(long generation, long position) {
+            this.generation = generation;
+            this.position = position;
+        }
+
+        /**
+         * Blocks until the commit this ticket was issued for, and every journal
+         * record before it, has been written to the journal file, and synced
+         * if the cache's durability syncs the journal.
+         */
+        public void await() throws IOException {
+            awaitJournal(generation, position, syncsJournal());
+        }
+    }
+
+    /**
+     * A holder class that contains the optional parameters of a cache.
+     */
+    public static final class Params {
+        /**
+         * The number of independent segments to hash keys into. Each segment
+         * has its own lock, so operations on keys in different segments don't
+         * contend. 1 opens a regular, unsegmented cache.
+         */
+        public int segmentCount = 1;
+
+        /**
+         * How long journal records may be held back so that they are written
+         * together with the records that follow them. 0 writes them as soon as
+         * the journal buffer fills up or the cache is flushed.
+         */
+        public long journalCommitWindowMillis = 0;
+
+        /**
+         * Store values by appending them to a few large pack files rather than
+         * in one file each. Values being written are buffered in memory until
+         * they are committed, so this suits caches of small values. Opening an
+         * existing cache with a different storage drops its entries.
+         */
+        public boolean packedStorage = false;
+
+        /** The size at which a new pack file is started. */
+        public long packFileSize = 1024 * 1024;
+
+        /**
+         * Serve reads of readable entries without taking the cache's lock,
+         * journaling their READ records in batches and evicting with a clock
+         * sweep that approximates LRU.
+         */
+        public boolean readOptimized = false;
+
+        /** Decides which entries to evict. */
+        public EvictionPolicy.Factory evictionPolicy = LRU;
+
+        /**
+         * Spread the files of the entries over subdirectories rather than
+         * keeping them all in the cache's directory. Suits caches of many
+         * entries stored as files.
+         */
+        public boolean shardedLayout = false;
+
+        /**
+         * Encodes the values of new entries, such as {@link #DEFLATE}. Entries
+         * keep the codec they were written with; those written with a codec
+         * other than this one or {@link #NONE} are dropped on open.
+         */
+        public Codec codec = NONE;
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
-            }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
+        /**
+         * How much of the cache survives a crash of the device: one of
+         * {@link #DURABILITY_NONE}, {@link #DURABILITY_JOURNAL_ONLY},
+         * {@link #DURABILITY_FULL_FSYNC} and {@link #DURABILITY_PERIODIC}.
+         * Syncing costs commits or background I/O accordingly.
+         */
+        public int durability = DURABILITY_NONE;
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+        /** How often a cache of {@link #DURABILITY_PERIODIC} syncs its commits. */
+        public long syncIntervalMillis = 5000;
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
+        /**
+         * The share of {@code maxSize} past which entries start to be evicted
+         * in the background.
+         */
+        public float evictionHighWatermark = 1.0f;
 
-        return true;
-    }
+        /** The share of {@code maxSize} to which eviction brings the size down. */
+        public float evictionLowWatermark = 0.9f;
 
-    /**
-     * Returns true if this cache has been closed.
-     */
-    public boolean isClosed() {
-        return journalWriter == null;
-    }
+        /**
+         * The share of {@code maxSize} past which commits wait for eviction to
+         * catch up, and eviction ignores {@link #evictionsPerSecond}.
+         */
+        public float evictionCeiling = 1.1f;
 
-    private void checkNotClosed() {
-        if (journalWriter == null) {
-            throw new IllegalStateException("cache is closed");
+        /**
+         * The most entries to evict per second, so that eviction doesn't
+         * compete with reads and writes for the storage device. 0 evicts as
+         * fast as it can, releasing the lock between batches.
+         */
+        public int evictionsPerSecond = 0;
+
+        private Params copy() {
+            Params copy = new Params();
+            copy.segmentCount = segmentCount;
+            copy.journalCommitWindowMillis = journalCommitWindowMillis;
+            copy.packedStorage = packedStorage;
+            copy.packFileSize = packFileSize;
+            copy.readOptimized = readOptimized;
+            copy.evictionPolicy = evictionPolicy;
+            copy.shardedLayout = shardedLayout;
+            copy.codec = codec;
+            copy.durability = durability;
+            copy.syncIntervalMillis = syncIntervalMillis;
+            copy.evictionHighWatermark = evictionHighWatermark;
+            copy.evictionLowWatermark = evictionLowWatermark;
+            copy.evictionCeiling = evictionCeiling;
+            copy.evictionsPerSecond = evictionsPerSecond;
+            return copy;
         }
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Holds a value written to a cache with packed storage until its edit is
+     * committed.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
-    }
+    private static final class ValueBuffer extends ByteArrayOutputStream {
+        private final EditProgress progress;
 
-    /**
-     * Closes this cache. Stored values will remain on the filesystem.
-     */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
-        }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
-            }
+        private ValueBuffer(EditProgress progress) {
+            this.progress = progress;
         }
-        trimToSize();
-        journalWriter.close();
-        journalWriter = null;
-    }
 
-    private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        @Override public synchronized void write(int oneByte) {
+            super.write(oneByte);
+            progress.advance(1);
         }
-    }
 
-    /**
-     * Closes the cache and deletes all of its stored values. This will delete
-     * all files in the cache directory including files that weren't created by
-     * the cache.
-     */
-    public void delete() throws IOException {
-        close();
-        deleteContents(directory);
-    }
+        @Override public synchronized void write(byte[] buffer, int offset, int length) {
+            super.write(buffer, offset, length);
+            progress.advance(length);
+        }
 
-    private void validateKey(String key) {
-        if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
-            throw new IllegalArgumentException(
-                    "keys must not contain spaces or newlines: \"" + key + "\"");
+        private byte[] buffer() {
+            return buf;
         }
-    }
 
-    private static String inputStreamToString(InputStream in) throws IOException {
-        return readFully(new InputStreamReader(in, UTF_8));
+        /** Copies bytes written so far, starting at {@code position}. */
+        private synchronized int read(long position, byte[] buffer, int offset, int length) {
+            int count = (int) Math.min(length, this.count - position);
+            System.arraycopy(buf, (int) position, buffer, offset, count);
+            return count;
+        }
     }
 
     /**
-     * A snapshot of the values for an entry.
+     * Tracks how much of a value an edit has written, for the streams tailing
+     * it. The value is written either to a file or, with packed storage, to a
+     * buffer.
      */
-    public final class Snapshot implements Closeable {
-        private final String key;
-        private final long sequenceNumber;
-        private final InputStream[] ins;
-
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
-            this.key = key;
-            this.sequenceNumber = sequenceNumber;
-            this.ins = ins;
-        }
+    private static final class EditProgress {
+        private File file;
+        private ValueBuffer buffer;
+        private Codec codec;
+        private long written;
+        private boolean completed;
+        private boolean committed;
+        /** Incremented whenever the value is started over. */
+        private int attempt;
 
-        /**
-         * Returns an editor for this snapshot's entry, or null if either the
-         * entry has changed since this snapshot was created or if another edit
-         * is in progress.
-         */
-        public Editor edit() throws IOException {
-            return DiskLruCache.this.edit(key, sequenceNumber);
+        private synchronized void start(File file, ValueBuffer buffer, Codec codec) {
+            this.file = file;
+            this.buffer = buffer;
+            this.codec = codec;
+            this.written = 0;
+            this.attempt++;
+            notifyAll();
         }
 
-        /**
-         * Returns the unbuffered stream with the value for {@code index}.
-         */
-        public InputStream getInputStream(int index) {
-            return ins[index];
+        private synchronized void advance(long count) {
+            written += count;
+            notifyAll();
         }
 
         /**
-         * Returns the string value for {@code index}.
+         * Ends the edit. A committed value written to a file has been moved
+         * to {@code cleanFile} by then.
          */
-        public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
-        }
-
-        @Override public void close() {
-            for (InputStream in : ins) {
-                closeQuietly(in);
+        private synchronized void complete(boolean success, File cleanFile) {
+            completed = true;
+            committed = success && (file != null || buffer != null);
+            if (file != null) {
+                file = cleanFile;
             }
+            notifyAll();
         }
     }
 
     /**
-     * Edits the values for an entry.
+     * Reads a value while it is being written by an edit.
      */
-    public final class Editor {
-        private final Entry entry;
-        private boolean hasErrors;
+    private static final class TailingInputStream extends InputStream {
+        private final EditProgress progress;
+        private int attempt;
+        private FileInputStream file;
+        private long position;
+        private long mark;
+        private boolean closed;
 
-        private Editor(Entry entry) {
-            this.entry = entry;
+        private TailingInputStream(EditProgress progress) {
+            this.progress = progress;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
         }
 
         /**
-         * Returns an unbuffered input stream to read the last committed value,
-         * or null if no value has been committed.
+         * Blocks until the edit starts writing the value, and returns the
+         * codec it is encoded with.
          */
-        public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
-                    throw new IllegalStateException();
+        private Codec awaitCodec() throws IOException {
+            synchronized (progress) {
+                while (!progress.completed && progress.attempt == 0) {
+                    try {
+                        progress.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for the edit");
+                    }
                 }
-                if (!entry.readable) {
-                    return null;
+                if (progress.attempt == 0) {
+                    throw new IOException("the edit was aborted or didn't write this value");
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return progress.codec;
             }
         }
 
-        /**
-         * Returns the last committed value as a string, or null if no value
-         * has been committed.
-         */
-        public String getString(int index) throws IOException {
-            InputStream in = newInputStream(index);
-            return in != null ? inputStreamToString(in) : null;
-        }
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            ValueBuffer source;
+            File sourceFile;
+            long available;
+            synchronized (progress) {
+                while (!progress.completed && position >= progress.written) {
+                    try {
+                        progress.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for the edit");
+                    }
+                }
+                if (progress.completed && !progress.committed) {
+                    throw new IOException("the edit was aborted or didn't write this value");
+                }
+                if (attempt != 0 && attempt != progress.attempt) {
+                    throw new IOException("the edit started the value over");
+                }
+                if (position >= progress.written) {
+                    return -1;
+                }
+                attempt = progress.attempt;
+                source = progress.buffer;
+                sourceFile = progress.file;
+                available = progress.written - position;
+            }
 
-        /**
-         * Returns a new unbuffered output stream to write the value at
-         * {@code index}. If the underlying output stream encounters errors
-         * when writing to the filesystem, this edit will be aborted when
-         * {@link #commit} is called. The returned output stream does not throw
-         * IOExceptions.
-         */
-        public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
-                if (entry.currentEditor != this) {
-                    throw new IllegalStateException();
+            int count;
+            if (source != null) {
+                count = source.read(position, buffer, offset, (int) Math.min(length, available));
+            } else {
+                if (file == null) {
+                    file = openFile(sourceFile);
+                }
+                file.getChannel().position(position);
+                count = file.read(buffer, offset, (int) Math.min(length, available));
+                if (count == -1) {
+                    throw new EOFException("the value was truncated");
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
             }
+            position += count;
+            return count;
         }
 
         /**
-         * Sets the value at {@code index} to {@code value}.
+         * Opens the file of the value. If the edit has been committed since it
+         * was looked up, the file has just been moved to its clean name.
          */
-        public void set(int index, String value) throws IOException {
-            Writer writer = null;
+        private FileInputStream openFile(File sourceFile) throws IOException {
             try {
-                writer = new OutputStreamWriter(newOutputStream(index), UTF_8);
-                writer.write(value);
-            } finally {
-                closeQuietly(writer);
+                return new FileInputStream(sourceFile);
+            } catch (FileNotFoundException e) {
+                synchronized (progress) {
+                    if (!progress.committed || progress.file.equals(sourceFile)) {
+                        throw e;
+                    }
+                    sourceFile = progress.file;
+                }
+                return new FileInputStream(sourceFile);
             }
         }
 
-        /**
-         * Commits this edit so it is visible to readers.  This releases the
-         * edit lock so another edit may be started on the same key.
-         */
-        public void commit() throws IOException {
-            if (hasErrors) {
-                completeEdit(this, false);
-                remove(entry.key); // the previous entry is stale
-            } else {
-                completeEdit(this, true);
+        @Override public long skip(long count) throws IOException {
+            long skipped = 0;
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            while (skipped < count) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
             }
+            return skipped;
         }
 
-        /**
-         * Aborts this edit. This releases the edit lock so another edit may be
-         * started on the same key.
-         */
-        public void abort() throws IOException {
-            completeEdit(this, false);
+        @Override public boolean markSupported() {
+            return true;
         }
 
-        private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
-                super(out);
-            }
+        @Override public void mark(int readLimit) {
+            mark = position;
+        }
 
-            @Override public void write(int oneByte) {
-                try {
-                    out.write(oneByte);
-                } catch (IOException e) {
-                    hasErrors = true;
-                }
+        @Override public void reset() {
+            position = mark;
+        }
+
+        @Override public void close() throws IOException {
+            closed = true;
+            if (file != null) {
+                file.close();
             }
+        }
+    }
 
-            @Override public void write(byte[] buffer, int offset, int length) {
-                try {
-                    out.write(buffer, offset, length);
-                } catch (IOException e) {
-                    hasErrors = true;
+    /**
+     * Decodes a value read while it is being written, with the codec of the
+     * edit writing it, which is known once the edit starts writing the value.
+     * Encoded values are buffered, so that they support mark and reset like
+     * values that aren't.
+     */
+    private static final class DecodingTailInputStream extends InputStream {
+        private final TailingInputStream tail;
+        private InputStream in;
+        private int markLimit = -1;
+
+        private DecodingTailInputStream(TailingInputStream tail) {
+            this.tail = tail;
+        }
+
+        private InputStream in() throws IOException {
+            if (in == null) {
+                Codec codec = tail.awaitCodec();
+                in = codec == NONE
+                        ? tail
+                        : new BufferedInputStream(codec.decode(tail), IO_BUFFER_SIZE);
+                if (markLimit != -1) {
+                    in.mark(markLimit); // marked before the first read
                 }
             }
+            return in;
+        }
 
-            @Override public void close() {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    hasErrors = true;
-                }
+        @Override public int read() throws IOException {
+            return in().read();
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            return in().read(buffer, offset, length);
+        }
+
+        @Override public long skip(long count) throws IOException {
+            return in().skip(count);
+        }
+
+        @Override public boolean markSupported() {
+            return true;
+        }
+
+        @Override public void mark(int readLimit) {
+            if (in == null) {
+                markLimit = readLimit;
+            } else {
+                in.mark(readLimit);
             }
+        }
 
-            @Override public void flush() {
-                try {
-                    out.flush();
-                } catch (IOException e) {
-                    hasErrors = true;
-                }
+        @Override public void reset() throws IOException {
+            in().reset();
+        }
+
+        @Override public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            } else {
+                tail.close();
             }
         }
     }
 
+    /**
+     * An immutable view of an entry's committed values, for reads that don't
+     * take the cache's lock. The arrays are shared with the entry until it is
+     * next updated; see {@link #beginUpdate}.
+     */
+    private static final class PublishedValues {
+        private final long sequenceNumber;
+        private final long[] lengths;
+        private final long[] locations;
+        private final Metadata metadata;
+        private final Codec codec;
+
+        private PublishedValues(Entry entry) {
+            this.sequenceNumber = entry.sequenceNumber;
+            this.lengths = entry.lengths;
+            this.locations = entry.locations;
+            this.metadata = entry.metadata;
+            this.codec = entry.codec;
+        }
+    }
+
+    /** The metadata and expiry time of an entry. */
+    private static final class Metadata {
+        private final String value;
+        private final long expiresAt;
+
+        private Metadata(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
     private final class Entry {
-        private final String key;
+        /** The 128-bit form of the key; see {@link #keyHigh(String)}. */
+        private final long keyHigh;
+        private final long keyLow;
+
+        /** The key if it isn't a hex digest, which is kept as the two halves only. */
+        private final String literalKey;
 
         /** Lengths of this entry's files. */
-        private final long[] lengths;
+        private long[] lengths;
+
+        /** Locations of this entry's values in packs, or null if stored as files. */
+        private long[] locations;
 
         /** True if this entry has ever been published */
         private boolean readable;
@@ -908,46 +4618,101 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** The metadata and expiry time of this entry, or null if none were set. */
+        private Metadata metadata;
+
+        /** The codec of this entry's values, or null if this cache doesn't know it. */
+        private Codec codec = NONE;
+
+        /**
+         * The committed values as seen by reads without the lock, or null if
+         * not readable. Only maintained in read-optimized caches.
+         */
+        private volatile PublishedValues published;
+
+        /** Incremented before and after every change of the values; odd while changing. */
+        private volatile int modCount;
+
+        /** Set by reads and cleared by the eviction sweep of a read-optimized cache. */
+        private volatile boolean accessed;
+
         private Entry(String key) {
-            this.key = key;
+            this.keyHigh = keyHigh(key);
+            this.keyLow = keyLow(key);
+            this.literalKey = isHexDigest(key) ? null : key;
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
+        private String key() {
+            return literalKey != null ? literalKey : toHex(keyHigh, keyLow);
+        }
+
+        private boolean hasKey(String key) {
+            return literalKey != null ? literalKey.equals(key) : isHexDigest(key)
+                    && keyHigh == keyHigh(key) && keyLow == keyLow(key);
+        }
+
+        private boolean isExpired(long now) {
+            return metadata != null && metadata.isExpired(now);
         }
 
         /**
-         * Set lengths using decimal numbers like "10123".
+         * Returns true if this entry is readable and has a value in pack
+         * {@code packId}.
          */
-        private void setLengths(String[] strings) throws IOException {
-            if (strings.length != valueCount) {
-                throw invalidLengths(strings);
+        private boolean isPackedIn(int packId) {
+            if (locations == null || !readable) {
+                return false;
             }
-
-            try {
-                for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
+            for (long location : locations) {
+                if (location != -1 && PackedValueStore.packId(location) == packId) {
+                    return true;
                 }
-            } catch (NumberFormatException e) {
-                throw invalidLengths(strings);
             }
+            return false;
         }
 
-        private IOException invalidLengths(String[] strings) throws IOException {
-            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+        /**
+         * Opens the committed value at {@code index}. Must be called with the
+         * cache's lock held.
+         */
+        private InputStream newInputStream(int index) throws IOException {
+            if (locations != null) {
+                return packedValues.newInputStream(locations[index], lengths[index]);
+            }
+            return new FileInputStream(getCleanFile(index));
         }
 
         public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+            return new File(getDirectory(), fileName(i, ""));
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+            return new File(getDirectory(), fileName(i, ".tmp"));
+        }
+
+        /** Builds the name of a value's file without creating the key's hex form. */
+        private String fileName(int i, String suffix) {
+            StringBuilder name = new StringBuilder(KEY_DIGEST_LENGTH * 2 + 8);
+            if (literalKey != null) {
+                name.append(literalKey);
+            } else {
+                for (int n = 0; n < 16; n++) {
+                    name.append(HEX_DIGITS[(int) (keyHigh >>> (60 - n * 4)) & 0xf]);
+                }
+                for (int n = 0; n < 16; n++) {
+                    name.append(HEX_DIGITS[(int) (keyLow >>> (60 - n * 4)) & 0xf]);
+                }
+            }
+            return name.append('.').append(i).append(suffix).toString();
+        }
+
+        private File getDirectory() {
+            if (shardDirectories == null) {
+                return directory;
+            }
+            int keyHash = literalKey != null ? literalKey.hashCode() : hexHashCode(keyHigh, keyLow);
+            return shardDirectories[shardIndex(keyHash)];
         }
     }
 }
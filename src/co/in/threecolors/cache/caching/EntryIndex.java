@@ -0,0 +1,341 @@
+package co.in.threecolors.cache.caching;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Maps 128-bit keys, given as two longs, to values, remembering the order in
+ * which they were inserted or, optionally, last accessed.
+ *
+ * <p>Unlike a {@link java.util.LinkedHashMap} of string keys, this keeps no
+ * object per mapping: keys, values and the links of the order live in a few
+ * arrays, with collisions resolved by linear probing. Removals shift the
+ * mappings that follow back into the freed slot rather than leaving markers
+ * behind.
+ *
+ * <p>Changes must be synchronized externally, but {@link #peek} may be called
+ * concurrently with them. It then may miss a mapping that is being moved, or
+ * return a value that was just mapped to another key, so callers must check
+ * the key of the value they get and treat a miss as unsure.
+ */
+final class EntryIndex<V> implements Iterable<V> {
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    /** The arrays of the index, replaced together when it grows. */
+    private static final class Table {
+        /** The high and low halves of the key in each slot. */
+        final long[] keys;
+        /** The value in each slot, or null if the slot is free. */
+        final Object[] values;
+        /** The slots before and after each slot in the order, or NONE. */
+        final int[] before;
+        final int[] after;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new long[capacity * 2];
+            this.values = new Object[capacity];
+            this.before = new int[capacity];
+            this.after = new int[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private final boolean accessOrder;
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    /**
+     * @param accessOrder true to order the mappings by last access, false to
+     *     order them by insertion
+     */
+    EntryIndex(boolean accessOrder) {
+        this.accessOrder = accessOrder;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value of {@code high} and {@code low}, or null. If the index
+     * is ordered by access, the mapping becomes the most recent one.
+     */
+    V get(long high, long low) {
+        Table t = table;
+        int slot = find(t, high, low);
+        if (slot < 0) {
+            return null;
+        }
+        if (accessOrder) {
+            moveToTail(t, slot);
+        }
+        return value(t, slot);
+    }
+
+    /**
+     * Returns the value of {@code high} and {@code low}, or null, without
+     * changing the order. See the class comment for calls without the lock.
+     */
+    V peek(long high, long low) {
+        Table t = table;
+        int slot = slot(t, high, low);
+        Object value;
+        while ((value = t.values[slot]) != null) {
+            if (t.keys[slot * 2] == high && t.keys[slot * 2 + 1] == low) {
+                @SuppressWarnings("unchecked")
+                V result = (V) value;
+                return result;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+        return null;
+    }
+
+    /**
+     * Maps {@code high} and {@code low} to {@code value}, returning the value
+     * it replaces or null. A new mapping becomes the most recent one, as does a
+     * replaced one if the index is ordered by access.
+     */
+    V put(long high, long low, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        Table t = table;
+        int slot = find(t, high, low);
+        if (slot >= 0) {
+            V previous = value(t, slot);
+            t.values[slot] = value;
+            if (accessOrder) {
+                moveToTail(t, slot);
+            }
+            return previous;
+        }
+        if (size + 1 > t.values.length * 3 / 4) {
+            t = grow();
+            slot = ~find(t, high, low);
+        } else {
+            slot = ~slot;
+        }
+        t.keys[slot * 2] = high;
+        t.keys[slot * 2 + 1] = low;
+        t.values[slot] = value;
+        link(t, slot);
+        size++;
+        return null;
+    }
+
+    /** Removes the mapping of {@code high} and {@code low}, returning its value or null. */
+    V remove(long high, long low) {
+        Table t = table;
+        int slot = find(t, high, low);
+        if (slot < 0) {
+            return null;
+        }
+        V value = value(t, slot);
+        removeSlot(t, slot);
+        return value;
+    }
+
+    /** Makes the mapping of {@code high} and {@code low}, if any, the most recent one. */
+    void moveToTail(long high, long low) {
+        Table t = table;
+        int slot = find(t, high, low);
+        if (slot >= 0) {
+            moveToTail(t, slot);
+        }
+    }
+
+    /** Returns the value of the least recent mapping, or null if the index is empty. */
+    V eldest() {
+        return head == NONE ? null : EntryIndex.<V>value(table, head);
+    }
+
+    void clear() {
+        table = new Table(MIN_CAPACITY);
+        head = NONE;
+        tail = NONE;
+        size = 0;
+    }
+
+    /** Returns a copy of the values, least recent first. */
+    List<V> values() {
+        List<V> result = new ArrayList<V>(size);
+        for (V value : this) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    /**
+     * Iterates over the values, least recent first. The iterator supports
+     * {@link Iterator#remove}; other changes during the iteration leave it
+     * undefined.
+     */
+    @Override public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private int next = head;
+            private int last = NONE;
+
+            @Override public boolean hasNext() {
+                return next != NONE;
+            }
+
+            @Override public V next() {
+                if (next == NONE) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = table.after[next];
+                return value(table, last);
+            }
+
+            @Override public void remove() {
+                if (last == NONE) {
+                    throw new IllegalStateException();
+                }
+                Table t = table;
+                // the shift after the removal may move the next mapping
+                long nextHigh = next != NONE ? t.keys[next * 2] : 0;
+                long nextLow = next != NONE ? t.keys[next * 2 + 1] : 0;
+                removeSlot(t, last);
+                if (next != NONE) {
+                    next = find(t, nextHigh, nextLow);
+                }
+                last = NONE;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V value(Table t, int slot) {
+        return (V) t.values[slot];
+    }
+
+    private static int slot(Table t, long high, long low) {
+        long h = (high ^ low) * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & t.mask;
+    }
+
+    /**
+     * Returns the slot of {@code high} and {@code low}, or the bitwise
+     * complement of the free slot where it would go.
+     */
+    private static int find(Table t, long high, long low) {
+        int slot = slot(t, high, low);
+        while (t.values[slot] != null) {
+            if (t.keys[slot * 2] == high && t.keys[slot * 2 + 1] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+        return ~slot;
+    }
+
+    /** Doubles the capacity, keeping the order. */
+    private Table grow() {
+        Table old = table;
+        Table t = new Table(old.values.length * 2);
+        int oldSlot = head;
+        head = NONE;
+        tail = NONE;
+        while (oldSlot != NONE) {
+            long high = old.keys[oldSlot * 2];
+            long low = old.keys[oldSlot * 2 + 1];
+            int slot = ~find(t, high, low);
+            t.keys[slot * 2] = high;
+            t.keys[slot * 2 + 1] = low;
+            t.values[slot] = old.values[oldSlot];
+            link(t, slot);
+            oldSlot = old.after[oldSlot];
+        }
+        table = t;
+        return t;
+    }
+
+    private void link(Table t, int slot) {
+        t.before[slot] = tail;
+        t.after[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            t.after[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(Table t, int slot) {
+        int before = t.before[slot];
+        int after = t.after[slot];
+        if (before == NONE) {
+            head = after;
+        } else {
+            t.after[before] = after;
+        }
+        if (after == NONE) {
+            tail = before;
+        } else {
+            t.before[after] = before;
+        }
+    }
+
+    private void moveToTail(Table t, int slot) {
+        if (slot != tail) {
+            unlink(t, slot);
+            link(t, slot);
+        }
+    }
+
+    /**
+     * Frees {@code slot}, then moves back the mappings that follow it in its
+     * run and would no longer be found past the gap.
+     */
+    private void removeSlot(Table t, int slot) {
+        unlink(t, slot);
+        size--;
+        int gap = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & t.mask;
+            if (t.values[next] == null) {
+                break;
+            }
+            int home = slot(t, t.keys[next * 2], t.keys[next * 2 + 1]);
+            // stays if its home lies cyclically in (gap, next]
+            boolean stays = gap <= next
+                    ? gap < home && home <= next
+                    : gap < home || home <= next;
+            if (!stays) {
+                move(t, next, gap);
+                gap = next;
+            }
+        }
+        t.values[gap] = null;
+    }
+
+    /** Moves the mapping in slot {@code from} to the free slot {@code to}. */
+    private void move(Table t, int from, int to) {
+        t.keys[to * 2] = t.keys[from * 2];
+        t.keys[to * 2 + 1] = t.keys[from * 2 + 1];
+        t.values[to] = t.values[from];
+        int before = t.before[from];
+        int after = t.after[from];
+        t.before[to] = before;
+        t.after[to] = after;
+        if (before == NONE) {
+            head = to;
+        } else {
+            t.after[before] = to;
+        }
+        if (after == NONE) {
+            tail = to;
+        } else {
+            t.before[after] = to;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package co.in.threecolors.cache.caching;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -60,7 +63,8 @@ public class ImageCache extends ObjectCache<Bitmap> {
      * @return An existing retained ImageCache object or a new one if one did
      *         not exist
      */
-    public static ImageCache getCache(FragmentManager fragmentManager, FileCacheParams cacheParams) {
+    public static ImageCache getCache(FragmentManager fragmentManager,
+            FileCacheParams cacheParams) {
 
         // Search for, or create an instance of the non-UI RetainFragment
         final RetainFragment mRetainFragment = findOrCreateRetainFragment(fragmentManager, TAG);
@@ -77,6 +81,37 @@ public class ImageCache extends ObjectCache<Bitmap> {
         return imageCache;
     }
 
+    @Override
+    protected Bitmap getSpecificObjectFromDiskCache(DiskLruCache.Snapshot snapshot, int index)
+            throws IOException {
+        final InputStream inputStream = snapshot.getInputStream(index);
+        if (snapshot.getCodec() != DiskLruCache.NONE) {
+            // Only the stream decodes the stored bytes
+            return getSpecificObjectFromDiskCache(inputStream);
+        }
+        if (inputStream instanceof FileInputStream) {
+            // Stored in a file of its own, let the decoder read it directly
+            return BitmapFactory.decodeFileDescriptor(((FileInputStream) inputStream).getFD());
+        }
+        final long length = snapshot.getLength(index);
+        if (length > Integer.MAX_VALUE) {
+            return getSpecificObjectFromDiskCache(inputStream);
+        }
+        // Packed with other values, read exactly its bytes through the
+        // snapshot's stream, which a cancelled (interrupted) load can't
+        // close for the other readers of the pack, and decode them at once
+        final byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            final int count = inputStream.read(bytes, offset, bytes.length - offset);
+            if (count == -1) {
+                throw new EOFException("value truncated");
+            }
+            offset += count;
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    }
+
     @Override
     public Bitmap getSpecificObjectFromDiskCache(InputStream inputStream) {
         if (inputStream != null) {
@@ -2,6 +2,7 @@ package co.in.threecolors.cache.caching;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
@@ -13,6 +14,7 @@ import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Hashtable;
+import java.util.Locale;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -53,6 +55,14 @@ public class ImageLoader {
 
     private static final int MAX_THUMBNAIL_BYTES = 70 * 1024; // 70KB
     private static final int HTTP_CACHE_SIZE = 5 * 1024 * 1024; // 5MB
+    private static final int MAX_UNCACHED_BYTES = 2 * 1024 * 1024; // 2MB
+    private static final int HTTP_CACHE_SEGMENTS = 4;
+    private static final long HTTP_CACHE_COMMIT_WINDOW_MILLIS = 20;
+    /** How long images stay fresh if the server doesn't say */
+    private static final long HTTP_CACHE_DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L; // 1 day
+    /** How long stale images are kept to be revalidated, or shown when offline */
+    private static final long HTTP_CACHE_MAX_STALE_MILLIS = 7 * 24 * 60 * 60 * 1000L; // 1 week
+    private static final int DOWNLOAD_FAILED = -1;
     private static final int IO_BUFFER_SIZE_BYTES = 4 * 1024; // 4KB
 
     private static final int DISK_CACHE_INDEX = 0;
@@ -380,6 +390,7 @@ public class ImageLoader {
             mImageCache.clearCache();
         }
 
+        boolean cleared = false;
         synchronized (mHttpDiskCacheLock) {
             if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
                 try {
@@ -390,9 +401,12 @@ public class ImageLoader {
                 }
                 mHttpDiskCache = null;
                 mHttpDiskCacheStarting = true;
-                initHttpDiskCache();
+                cleared = true;
             }
         }
+        if (cleared) {
+            initHttpDiskCache();
+        }
     }
 
     protected void flushCacheInternal() {
@@ -473,7 +487,8 @@ public class ImageLoader {
 
     /**
      * Download and resize a normal sized remote bitmap from a HTTP URL using a
-     * HTTP cache.
+     * HTTP cache. While the HTTP cache is being initialized, the bitmap is
+     * downloaded without it rather than waiting.
      * 
      * @param urlString
      *            The URL of the image to download
@@ -483,45 +498,57 @@ public class ImageLoader {
         final String key = ImageCache.hashKeyForDisk(urlString);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
+        InputStream tailingInputStream = null;
         DiskLruCache.Snapshot snapshot;
+        final DiskLruCache httpDiskCache;
         synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                }
+            if (mHttpDiskCacheStarting) {
+                Log.d(TAG, "processBitmap, http cache starting, downloading...");
+                return processUncachedBitmap(urlString);
             }
+            httpDiskCache = mHttpDiskCache;
+        }
 
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
+        // The download happens outside of the lock, so that a duplicate
+        // request can decode the image while it is being downloaded
+        if (httpDiskCache != null) {
+            try {
+                snapshot = httpDiskCache.get(key);
+                if (snapshot != null && !isFresh(snapshot.getMetadata())) {
+                    Log.d(TAG, "processBitmap, stale in http cache, revalidating...");
+                    snapshot = revalidate(httpDiskCache, urlString, key, snapshot);
+                }
+                if (snapshot == null) {
+                    DiskLruCache.Editor editor = httpDiskCache.edit(key);
+                    if (editor != null) {
                         Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(urlString, editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
+                        final int status = downloadUrlToStream(urlString, editor, null);
+                        if (status == HttpURLConnection.HTTP_OK) {
+                            editor.commit();
+                        } else {
+                            editor.abort();
                         }
-                        snapshot = mHttpDiskCache.get(key);
+                    } else {
+                        Log.d(TAG, "processBitmap, already downloading, reading along...");
+                        tailingInputStream = httpDiskCache.tail(key, DISK_CACHE_INDEX);
                     }
-                    if (snapshot != null) {
-                        fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
+                    if (tailingInputStream == null) {
+                        snapshot = httpDiskCache.get(key);
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {
-                        }
+                }
+                if (snapshot != null) {
+                    fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                    fileDescriptor = fileInputStream.getFD();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                if (fileDescriptor == null && fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {
                     }
                 }
             }
@@ -530,6 +557,8 @@ public class ImageLoader {
         Bitmap bitmap = null;
         if (fileDescriptor != null) {
             bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth, mImageHeight);
+        } else if (tailingInputStream != null) {
+            bitmap = decodeSampledBitmapFromStream(tailingInputStream, mImageWidth, mImageHeight);
         }
         if (fileInputStream != null) {
             try {
@@ -537,9 +566,33 @@ public class ImageLoader {
             } catch (IOException e) {
             }
         }
+        if (tailingInputStream != null) {
+            try {
+                tailingInputStream.close();
+            } catch (IOException e) {
+            }
+        }
         return bitmap;
     }
 
+    /**
+     * Download and resize a normal sized remote bitmap from a HTTP URL without
+     * the HTTP cache. The ImageCache this eventually gets passed to still
+     * keeps the bitmap.
+     * 
+     * @param urlString
+     *            The URL of the image to download
+     * @return The scaled bitmap
+     */
+    private Bitmap processUncachedBitmap(String urlString) {
+        final byte[] bitmapBytes = downloadBitmapToMemory(urlString, MAX_UNCACHED_BYTES);
+        if (bitmapBytes != null) {
+            return decodeSampledBitmapFromStream(new ByteArrayInputStream(bitmapBytes), mImageWidth,
+                    mImageHeight);
+        }
+        return null;
+    }
+
     /**
      * Download a thumb-nail sized remote bitmap from a HTTP URL. No HTTP
      * caching is done ImageCache that this eventually gets passed to will do
@@ -625,26 +678,89 @@ public class ImageLoader {
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        try {
+            final URL url = new URL(urlString);
+            urlConnection = (HttpURLConnection) url.openConnection();
+            writeResponseToStream(urlConnection, outputStream);
+            return true;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Download a bitmap from a URL into an entry of the HTTP cache, along with
+     * the metadata needed to revalidate it later. If the entry's current
+     * metadata is given, the request is conditional on the image having
+     * changed; if it hasn't, only the metadata of the entry is refreshed.
+     * 
+     * @param urlString
+     *            The URL to fetch
+     * @param editor
+     *            The editor of the HTTP cache entry, to be committed by the
+     *            caller unless this fails
+     * @param metadata
+     *            The metadata of the cached image to revalidate, or null to
+     *            download it unconditionally
+     * @return HTTP_OK if the image was downloaded, HTTP_NOT_MODIFIED if the
+     *         cached image is still valid, DOWNLOAD_FAILED otherwise
+     */
+    private int downloadUrlToStream(String urlString, DiskLruCache.Editor editor, String metadata) {
+        HttpURLConnection urlConnection = null;
         try {
             final URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE_BYTES);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE_BYTES);
+            final String[] fields = metadata != null ? metadata.split("\n", -1) : null;
+            if (fields != null && fields.length == 3) {
+                if (fields[1].length() > 0) {
+                    urlConnection.setRequestProperty("If-None-Match", fields[1]);
+                }
+                if (fields[2].length() > 0) {
+                    urlConnection.setRequestProperty("If-Modified-Since", fields[2]);
+                }
+            }
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && metadata != null) {
+                setHttpCacheMetadata(editor, urlConnection, fields);
+                return HttpURLConnection.HTTP_NOT_MODIFIED;
             }
-            return true;
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "Error in downloadBitmap - HTTP " + responseCode);
+                return DOWNLOAD_FAILED;
+            }
+            writeResponseToStream(urlConnection, editor.newOutputStream(DISK_CACHE_INDEX));
+            setHttpCacheMetadata(editor, urlConnection, null);
+            return HttpURLConnection.HTTP_OK;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
+        }
+        return DOWNLOAD_FAILED;
+    }
+
+    private void writeResponseToStream(HttpURLConnection urlConnection, OutputStream outputStream)
+            throws IOException {
+        BufferedOutputStream out = null;
+        BufferedInputStream in = null;
+
+        try {
+            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE_BYTES);
+            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE_BYTES);
+
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } finally {
             try {
                 if (out != null) {
                     out.close();
@@ -655,7 +771,96 @@ public class ImageLoader {
             } catch (final IOException e) {
             }
         }
-        return false;
+    }
+
+    /**
+     * Revalidate a stale HTTP cache entry with a conditional request.
+     * 
+     * @return The snapshot of the entry to use, which is the stale one if it
+     *         is still valid or couldn't be revalidated, or null if the
+     *         image changed but couldn't be stored
+     */
+    private DiskLruCache.Snapshot revalidate(DiskLruCache httpDiskCache, String urlString,
+            String key, DiskLruCache.Snapshot snapshot) throws IOException {
+        final DiskLruCache.Editor editor = snapshot.edit();
+        if (editor == null) {
+            return snapshot; // being updated already
+        }
+        final int result = downloadUrlToStream(urlString, editor, snapshot.getMetadata());
+        if (result == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            editor.commit();
+            return snapshot;
+        } else if (result == HttpURLConnection.HTTP_OK) {
+            editor.commit();
+            snapshot.close();
+            return httpDiskCache.get(key);
+        }
+        // Serve the stale image, the server couldn't be reached
+        editor.abort();
+        return snapshot;
+    }
+
+    /**
+     * HTTP cache metadata is the time until which the image is fresh, its
+     * ETag and its Last-Modified date, one per line. The entry expires once
+     * it has been stale for HTTP_CACHE_MAX_STALE_MILLIS.
+     */
+    private static void setHttpCacheMetadata(DiskLruCache.Editor editor,
+            HttpURLConnection urlConnection, String[] previousFields) {
+        String eTag = urlConnection.getHeaderField("ETag");
+        String lastModified = urlConnection.getHeaderField("Last-Modified");
+        if (previousFields != null && previousFields.length == 3) {
+            // A 304 response need not repeat the validators
+            if (eTag == null) {
+                eTag = previousFields[1];
+            }
+            if (lastModified == null) {
+                lastModified = previousFields[2];
+            }
+        }
+        final long freshUntil = freshUntil(urlConnection);
+        editor.setMetadata(freshUntil + "\n" + (eTag != null ? eTag : "") + "\n"
+                + (lastModified != null ? lastModified : ""));
+        editor.setExpiresAt(freshUntil + HTTP_CACHE_MAX_STALE_MILLIS);
+    }
+
+    private static long freshUntil(HttpURLConnection urlConnection) {
+        final long now = System.currentTimeMillis();
+        final String cacheControl = urlConnection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        final String maxAge = directive.substring("max-age=".length());
+                        return now + Long.parseLong(maxAge) * 1000;
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        final long expires = urlConnection.getExpiration();
+        if (expires > 0) {
+            final long date = urlConnection.getDate();
+            return now + Math.max(0, expires - (date > 0 ? date : now));
+        }
+        return now + HTTP_CACHE_DEFAULT_MAX_AGE_MILLIS;
+    }
+
+    private static boolean isFresh(String metadata) {
+        if (metadata == null) {
+            return false; // cached before metadata was recorded
+        }
+        final int end = metadata.indexOf('\n');
+        try {
+            final String expiresAt = end != -1 ? metadata.substring(0, end) : metadata;
+            return System.currentTimeMillis() < Long.parseLong(expiresAt);
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     /**
@@ -687,6 +892,44 @@ public class ImageLoader {
         return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
     }
 
+    /**
+     * Decode and sample down a bitmap from an input stream to the requested
+     * width and height. The stream must support mark and reset, as it is read
+     * twice.
+     * 
+     * @param inputStream
+     *            The input stream to read from
+     * @param reqWidth
+     *            The requested width of the resulting bitmap
+     * @param reqHeight
+     *            The requested height of the resulting bitmap
+     * @return A bitmap sampled down from the original with the same aspect
+     *         ratio and dimensions that are equal to or greater than the
+     *         requested width and height, or null if the stream failed
+     */
+    public static Bitmap decodeSampledBitmapFromStream(InputStream inputStream, int reqWidth,
+            int reqHeight) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        inputStream.mark(Integer.MAX_VALUE);
+        BitmapFactory.decodeStream(inputStream, null, options);
+        try {
+            inputStream.reset();
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSampledBitmapFromStream - " + e);
+            return null;
+        }
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeStream(inputStream, null, options);
+    }
+
     /**
      * Calculate an inSampleSize for use in a
      * {@link android.graphics.BitmapFactory.Options} object when decoding
@@ -744,15 +987,25 @@ public class ImageLoader {
         if (!mHttpCacheDir.exists()) {
             mHttpCacheDir.mkdirs();
         }
-        synchronized (mHttpDiskCacheLock) {
-            if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
-                try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
-                    Log.d(TAG, "HTTP cache initialized");
-                } catch (IOException e) {
-                    mHttpDiskCache = null;
-                }
+        // Open the cache outside of the lock, so that images are downloaded
+        // directly while the journal is read
+        DiskLruCache httpDiskCache = null;
+        if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
+            final DiskLruCache.Params params = new DiskLruCache.Params();
+            params.segmentCount = HTTP_CACHE_SEGMENTS;
+            params.journalCommitWindowMillis = HTTP_CACHE_COMMIT_WINDOW_MILLIS;
+            params.readOptimized = true;
+            params.evictionPolicy = DiskLruCache.TINY_LFU;
+            params.shardedLayout = true;
+            try {
+                httpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE, params);
+                Log.d(TAG, "HTTP cache initialized");
+            } catch (IOException e) {
+                httpDiskCache = null;
             }
+        }
+        synchronized (mHttpDiskCacheLock) {
+            mHttpDiskCache = httpDiskCache;
             mHttpDiskCacheStarting = false;
             mHttpDiskCacheLock.notifyAll();
         }
@@ -773,7 +1026,7 @@ public class ImageLoader {
          * Background processing.
          */
         @Override
-        protected Bitmap doInBackground(Object... params) {
+        protected Bitmap doInBackground(final Object... params) {
             Log.d(TAG, "doInBackground - starting work");
 
             mData = params[0];
@@ -790,20 +1043,22 @@ public class ImageLoader {
                 }
             }
 
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-                bitmap = mImageCache.getObjectFromDiskCache(dataString);
-            }
-
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-                bitmap = processBitmap(params[0]);
-            }
-
-            /**
-             * If the bitmap was processed and the image cache is available,
-             * then add the processed bitmap to the cache for future use.
-             */
-            if (bitmap != null && mImageCache != null) {
-                mImageCache.addObjectToCache(dataString, bitmap);
+            if (!isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
+                if (mImageCache != null) {
+                    /**
+                     * Tasks asking for the same image at once, such as those of
+                     * two fragments side by side, share one disk read or download,
+                     * whose bitmap is added to the cache for future use.
+                     */
+                    bitmap = mImageCache.getOrLoad(dataString, new ObjectCache.Loader<Bitmap>() {
+                        @Override
+                        public Bitmap load(String data) {
+                            return processBitmap(params[0]);
+                        }
+                    });
+                } else {
+                    bitmap = processBitmap(params[0]);
+                }
             }
 
             Log.d(TAG, "doInBackground - finished work");
@@ -0,0 +1,300 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends records to a {@link DiskLruCache} journal, committing them to the
+ * file in groups.
+ *
+ * <p>Appended bytes are queued in memory. With a commit window of zero they
+ * are written whenever the queue fills up or is flushed, like a buffered
+ * stream. With a positive window, a background committer writes everything
+ * queued within the window in a single write, so a burst of edits shares one
+ * system call instead of paying one each.
+ *
+ * <p>Callers that need a record to reach the file before going on remember
+ * its {@link #position()} and pass it to {@link #awaitCommit}, or to
+ * {@link #awaitSync} if it must also reach the storage device. The first
+ * waiter commits the whole queue on its own thread; waiters arriving while a
+ * commit is in flight join it, or the commit that follows it, so that they
+ * share a single fsync too.
+ *
+ * <p>A commit that fails may leave part of a batch in the file, so nothing
+ * appended after it can be committed behind it. The writer reports the
+ * failure to every caller from then on, and tells its owner once, so that the
+ * owner can replace it with a rebuilt journal.
+ */
+final class JournalWriter extends OutputStream {
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /** Commits above this many queued bytes don't wait for the window to end. */
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+    /**
+     * A single daemon thread commits the journals of all caches, and times
+     * their periodic work.
+     */
+    private static final ScheduledExecutorService committer = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskLruCache journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final FileOutputStream file;
+    private final long commitWindowMillis;
+    private final Runnable failureListener;
+
+    private byte[] pending = new byte[IO_BUFFER_SIZE];
+    private int pendingCount;
+    private byte[] spare;
+
+    /** The journal length including queued bytes. */
+    private long position;
+    /** The journal length that has been written to the file. */
+    private long committed;
+    /** The journal length that has been synced to the storage device. */
+    private long synced;
+    private boolean committing;
+    private boolean commitScheduled;
+    private boolean closed;
+    private IOException failure;
+
+    private final Runnable commitTask = new Runnable() {
+        @Override public void run() {
+            synchronized (JournalWriter.this) {
+                commitScheduled = false;
+            }
+            try {
+                commit(Long.MAX_VALUE, false);
+            } catch (IOException ignored) {
+                // kept in failure and reported to the next caller
+            }
+        }
+    };
+
+    /**
+     * @param journal the journal file to append to
+     * @param commitWindowMillis how long queued records may wait to be
+     *     committed together with later ones; 0 to commit only when the
+     *     queue fills up or is flushed
+     * @param failureListener run once, on the thread that failed, when a
+     *     commit first fails
+     */
+    JournalWriter(File journal, long commitWindowMillis, Runnable failureListener)
+            throws IOException {
+        this.position = journal.length();
+        this.committed = position;
+        this.synced = position;
+        this.file = new FileOutputStream(journal, true);
+        this.commitWindowMillis = commitWindowMillis;
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Runs {@code task} on the committer thread after {@code delayMillis}. The
+     * task must be short, handing longer work to a thread of its own.
+     */
+    static void schedule(Runnable task, long delayMillis) {
+        committer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the length of the journal once everything appended so far has
+     * been committed.
+     */
+    public synchronized long position() {
+        return position;
+    }
+
+    /**
+     * Returns true if a commit has failed, so that this writer rejects
+     * everything appended since and must be replaced.
+     */
+    public synchronized boolean failed() {
+        return failure != null;
+    }
+
+    @Override public void write(int oneByte) throws IOException {
+        boolean commitNow;
+        synchronized (this) {
+            ensureCapacity(1);
+            pending[pendingCount++] = (byte) oneByte;
+            position++;
+            commitNow = afterAppend();
+        }
+        if (commitNow) {
+            commit(Long.MAX_VALUE, false);
+        }
+    }
+
+    @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+        boolean commitNow;
+        synchronized (this) {
+            ensureCapacity(length);
+            System.arraycopy(buffer, offset, pending, pendingCount, length);
+            pendingCount += length;
+            position += length;
+            commitNow = afterAppend();
+        }
+        if (commitNow) {
+            commit(Long.MAX_VALUE, false);
+        }
+    }
+
+    /**
+     * Blocks until the journal has been committed up to {@code target}, a
+     * value previously returned by {@link #position()}.
+     */
+    public void awaitCommit(long target) throws IOException {
+        commit(target, false);
+    }
+
+    /**
+     * Blocks until the journal has been committed up to {@code target} and
+     * synced to the storage device.
+     */
+    public void awaitSync(long target) throws IOException {
+        commit(target, true);
+    }
+
+    /** Commits everything appended so far. */
+    @Override public void flush() throws IOException {
+        commit(position(), false);
+    }
+
+    /** Commits everything appended so far and syncs it to the storage device. */
+    public void sync() throws IOException {
+        commit(position(), true);
+    }
+
+    @Override public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            if (!failed()) {
+                commit(Long.MAX_VALUE, false);
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            file.close();
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (closed) {
+            throw new IOException("journal writer is closed");
+        }
+        if (pendingCount + length > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingCount + length)];
+            System.arraycopy(pending, 0, grown, 0, pendingCount);
+            pending = grown;
+        }
+    }
+
+    /** Returns true if the caller should commit the queue on its own thread. */
+    private boolean afterAppend() {
+        if (commitWindowMillis <= 0) {
+            return pendingCount >= IO_BUFFER_SIZE;
+        }
+        if (!commitScheduled) {
+            commitScheduled = true;
+            long delay = pendingCount >= MAX_PENDING_BYTES ? 0 : commitWindowMillis;
+            committer.schedule(commitTask, delay, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Writes the queued bytes to the file unless the journal has already been
+     * committed up to {@code target}, then syncs the file if {@code sync} is
+     * true and it hasn't been synced up to {@code target}. Only one commit
+     * writes at a time so that batches reach the file in order.
+     */
+    private void commit(long target, boolean sync) throws IOException {
+        byte[] batch = null;
+        int count = 0;
+        long batchEnd;
+        boolean syncNow;
+        synchronized (this) {
+            while (committing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for journal commit");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            long goal = Math.min(target, position);
+            syncNow = sync && synced < goal;
+            if ((committed >= goal && !syncNow) || closed) {
+                return;
+            }
+            committing = true;
+            batchEnd = committed;
+            if (committed < goal) {
+                batch = pending;
+                count = pendingCount;
+                batchEnd = position;
+                pending = spare != null && spare.length >= IO_BUFFER_SIZE
+                        ? spare : new byte[IO_BUFFER_SIZE];
+                pendingCount = 0;
+                spare = null;
+            }
+        }
+
+        IOException error = null;
+        boolean firstFailure = false;
+        try {
+            if (batch != null) {
+                file.write(batch, 0, count);
+            }
+            if (syncNow) {
+                file.getFD().sync();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            committing = false;
+            if (error == null) {
+                committed = batchEnd;
+                if (syncNow) {
+                    synced = batchEnd;
+                }
+            } else {
+                firstFailure = failure == null;
+                failure = error;
+            }
+            if (batch != null && batch.length <= MAX_PENDING_BYTES) {
+                spare = batch;
+            }
+            notifyAll();
+        }
+        if (firstFailure) {
+            failureListener.run();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
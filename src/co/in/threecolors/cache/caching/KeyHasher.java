@@ -0,0 +1,199 @@
+package co.in.threecolors.cache.caching;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes cache keys, such as URLs, into the 32 hex digit names entries are
+ * stored under on disk.
+ *
+ * <p>Keys are encoded as UTF-8 into a buffer kept per thread, and hashed with
+ * a digest kept per thread, so that hashing allocates little more than the
+ * resulting name. {@link #MD5} names are the ones this cache always used;
+ * {@link #MURMUR3_128} names are the 128-bit murmur3 hash of the key, which
+ * is much cheaper to compute but not cryptographic. Both are 32 hex digits,
+ * which {@link DiskLruCache} stores as 16 bytes.
+ */
+final class KeyHasher {
+    static final int MD5 = 0;
+    static final int MURMUR3_128 = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<KeyHasher> HASHERS = new ThreadLocal<KeyHasher>() {
+        @Override protected KeyHasher initialValue() {
+            return new KeyHasher();
+        }
+    };
+
+    private final MessageDigest md5;
+    private byte[] bytes = new byte[256];
+    private final char[] hex = new char[32];
+
+    private KeyHasher() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            digest = null;
+        }
+        this.md5 = digest;
+    }
+
+    /**
+     * Returns the name of {@code key} under {@code algorithm}, one of
+     * {@link #MD5} and {@link #MURMUR3_128}.
+     */
+    static String hash(String key, int algorithm) {
+        return HASHERS.get().hashKey(key, algorithm);
+    }
+
+    private String hashKey(String key, int algorithm) {
+        int length = encode(key);
+        if (algorithm == MURMUR3_128) {
+            return murmur3(length);
+        }
+        if (md5 == null) {
+            return String.valueOf(key.hashCode());
+        }
+        md5.reset();
+        md5.update(bytes, 0, length);
+        byte[] digest = md5.digest();
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex, 0, digest.length * 2);
+    }
+
+    /**
+     * Encodes {@code key} as UTF-8 into {@link #bytes}, the same way
+     * {@link String#getBytes(String)} does, unpaired surrogates becoming '?'.
+     * Returns the number of bytes.
+     */
+    private int encode(String key) {
+        int length = key.length();
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3];
+        }
+        byte[] b = bytes;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                b[count++] = (byte) c;
+            } else if (c < 0x800) {
+                b[count++] = (byte) (0xc0 | (c >> 6));
+                b[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                b[count++] = (byte) (0xf0 | (codePoint >> 18));
+                b[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                b[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                b[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                b[count++] = '?';
+            } else {
+                b[count++] = (byte) (0xe0 | (c >> 12));
+                b[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return count;
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Returns the x64 128-bit murmur3 hash of the first {@code length}
+     * {@link #bytes}, with a seed of 0, in hex. The digits are those of the
+     * hash's bytes in the order the reference implementation outputs them.
+     */
+    private String murmur3(int length) {
+        byte[] b = bytes;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length & ~15;
+        for (int i = 0; i < blocks; i += 16) {
+            long k1 = getLong(b, i);
+            long k2 = getLong(b, i + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = length - 1; i >= blocks + 8; i--) {
+            k2 = (k2 << 8) | (b[i] & 0xff);
+        }
+        for (int i = Math.min(length, blocks + 8) - 1; i >= blocks; i--) {
+            k1 = (k1 << 8) | (b[i] & 0xff);
+        }
+        if (length - blocks > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (length > blocks) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        putHexLittleEndian(h1, 0);
+        putHexLittleEndian(h2, 16);
+        return new String(hex);
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = offset + 7; i >= offset; i--) {
+            value = (value << 8) | (b[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private void putHexLittleEndian(long value, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int b = (int) (value >>> (i * 8));
+            hex[offset + i * 2] = HEX_DIGITS[(b >> 4) & 0xf];
+            hex[offset + i * 2 + 1] = HEX_DIGITS[b & 0xf];
+        }
+    }
+}
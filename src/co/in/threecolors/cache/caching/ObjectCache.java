@@ -1,11 +1,27 @@
 package co.in.threecolors.cache.caching;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -38,6 +54,120 @@ public abstract class ObjectCache<T> {
     protected static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
     protected static final int MAX_MEM_CACHE_SIZE = 20 * 1024 * 1024; // 20MB
 
+    /**
+     * Default number of independent disk cache segments, so that concurrent
+     * disk reads and writes of different keys don't contend on one lock
+     */
+    protected static final int DEFAULT_DISK_CACHE_SEGMENTS = 4;
+
+    /**
+     * Default time journal records of the disk cache may wait to be written
+     * together with others, so that bursts of edits share one write
+     */
+    protected static final long DEFAULT_JOURNAL_COMMIT_WINDOW_MILLIS = 20;
+
+    /**
+     * Default storage of the disk cache; cached objects are mostly small, so
+     * they are packed into a few large files rather than one file each
+     */
+    protected static final boolean DEFAULT_PACKED_DISK_STORAGE = true;
+
+    /**
+     * Default read mode of the disk cache; reads by far outnumber writes, so
+     * hits are served without locking the disk cache
+     */
+    protected static final boolean DEFAULT_READ_OPTIMIZED_DISK_CACHE = true;
+
+    /**
+     * Default layout of the disk cache; files are spread over subdirectories
+     * so that external storage doesn't slow down with thousands of them
+     */
+    protected static final boolean DEFAULT_SHARDED_DISK_LAYOUT = true;
+
+    /**
+     * Default eviction policy of the disk cache; keeps objects that are used
+     * again and again from being flushed by a one-off pass over many others
+     */
+    protected static final DiskLruCache.EvictionPolicy.Factory DEFAULT_DISK_CACHE_EVICTION_POLICY =
+            DiskLruCache.TINY_LFU;
+
+    /**
+     * Default number of threads writing objects to the disk cache; callers
+     * don't wait for their objects to be written
+     */
+    protected static final int DEFAULT_DISK_IO_THREADS = 2;
+
+    /**
+     * Default number of objects that may wait to be written to the disk
+     * cache; callers adding more wait for room
+     */
+    protected static final int DEFAULT_DISK_WRITE_QUEUE_SIZE = 16;
+
+    /**
+     * Default codec of the disk cache values; stores them as written, which
+     * suits images, as they are compressed already. Caches of text or
+     * serialized objects fit many more of them with {@link DiskLruCache#DEFLATE}
+     */
+    protected static final DiskLruCache.Codec DEFAULT_DISK_CACHE_CODEC = DiskLruCache.NONE;
+
+    /**
+     * Default durability of the disk cache; cached objects can be fetched
+     * again, so nothing is synced, and objects a crash cut short are dropped
+     * when the cache is opened next. Caches of objects that are costly to get
+     * again may pick {@link DiskLruCache#DURABILITY_PERIODIC} or stronger
+     */
+    protected static final int DEFAULT_DISK_CACHE_DURABILITY = DiskLruCache.DURABILITY_NONE;
+
+    /**
+     * Default number of objects the disk cache evicts per second once it is
+     * full, so that eviction leaves the storage to reads and writes
+     */
+    protected static final int DEFAULT_DISK_CACHE_EVICTIONS_PER_SECOND = 100;
+
+    /**
+     * Default number of the most recently used objects read from the disk
+     * cache into the memory cache once the disk cache is initialized
+     */
+    protected static final int DEFAULT_MEM_CACHE_WARM_UP_COUNT = 20;
+
+    /**
+     * Default behaviour of disk lookups made while the disk cache is being
+     * initialized; they miss right away, so that the caller loads the object
+     * instead of waiting for the journal to be read
+     */
+    protected static final boolean DEFAULT_WAIT_FOR_DISK_CACHE_ON_START = false;
+
+    /** Disk cache keys are the MD5 digest of the object's identifier */
+    public static final int DISK_KEY_HASH_MD5 = KeyHasher.MD5;
+
+    /**
+     * Disk cache keys are the 128-bit murmur3 hash of the object's identifier,
+     * which is much faster to compute than a digest
+     */
+    public static final int DISK_KEY_HASH_MURMUR3 = KeyHasher.MURMUR3_128;
+
+    /**
+     * Default hash of disk cache keys; MD5, which existing disk caches were
+     * written with
+     */
+    protected static final int DEFAULT_DISK_KEY_HASH = DISK_KEY_HASH_MD5;
+
+    /**
+     * Default for whether, under another key hash than MD5, disk cache entries
+     * stored under their MD5 names are moved to their new names. They are
+     * moved in the background, once, after the disk cache is opened, and
+     * looked up under their MD5 names until that is done. Entries that were
+     * written without their object's identifier can't be moved, and are left
+     * to be evicted.
+     */
+    protected static final boolean DEFAULT_MIGRATE_DISK_KEYS = true;
+
+    /**
+     * Default size in bytes of the off-heap cache, which keeps the encoded
+     * objects evicted from the memory cache; 0 leaves it out
+     */
+    protected static final int DEFAULT_OFF_HEAP_CACHE_SIZE = 0;
+
     /** Default memory cache size as a percent of device memory class */
     protected static final float DEFAULT_MEM_CACHE_PERCENT = 0.15f;
 
@@ -46,12 +176,80 @@ public abstract class ObjectCache<T> {
 
     protected static final int DISK_CACHE_INDEX = 0;
 
+    /** Number of locks the keys are spread over */
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    /** Number of objects written to the disk cache before reads get a turn */
+    private static final int DISK_WRITE_BATCH_SIZE = 8;
+
+    /** Number of objects read into the memory cache at a time while warming it up */
+    private static final int MEM_CACHE_WARM_UP_BATCH_SIZE = 16;
+
+    /** Number of disk cache entries checked for an MD5 name at a time */
+    private static final int DISK_KEY_MIGRATION_BATCH_SIZE = 32;
+
+    /**
+     * File next to the disk cache's journal recording that no entries are left
+     * under MD5 names; outside the cache's entries, so that it isn't evicted.
+     * Earlier versions stored it as an entry of the same name.
+     */
+    private static final String DISK_KEYS_MIGRATED = "disk-keys-migrated";
+
+    /** Number of evicted objects that may wait to be demoted */
+    private static final int DEMOTION_QUEUE_SIZE = 32;
+
     protected DiskLruCache mDiskLruCache;
+    protected AsyncDiskLruCache mAsyncDiskLruCache;
     protected LruCache<String, T> mMemoryCache;
     protected FileCacheParams mCacheParams;
-    protected final Object mDiskCacheLock = new Object();
+
+    /**
+     * Encoded objects between the memory and the disk cache, or null; set to
+     * null while the memory cache is cleared, so that nothing is demoted
+     */
+    private volatile OffHeapCache mOffHeapCache;
+
+    /**
+     * Guards the disk cache fields: held for reading while the disk cache is
+     * used, and for writing while it is initialized, cleared or closed.
+     */
+    protected final ReadWriteLock mDiskCacheLifecycleLock = new ReentrantReadWriteLock();
+
+    /** Notified once the disk cache has been initialized */
+    protected final Object mDiskCacheStartLock = new Object();
     protected boolean mDiskCacheStarting = true;
 
+    /**
+     * Serialize the disk reads and writes of a key, while those of keys on
+     * other stripes go on in parallel
+     */
+    private final Object[] mKeyLocks = new Object[KEY_LOCK_STRIPES];
+
+    /**
+     * Objects waiting to be written to the disk cache by disk key, oldest
+     * first; an object stays until it is written
+     */
+    private final LinkedHashMap<String, PendingWrite<T>> mDiskWrites =
+            new LinkedHashMap<String, PendingWrite<T>>();
+    private boolean mDiskWritesScheduled;
+
+    /**
+     * Objects evicted from the memory cache waiting to be demoted to the
+     * off-heap cache, oldest first
+     */
+    private final LinkedHashSet<String> mDemotions = new LinkedHashSet<String>();
+    private boolean mDemotionsScheduled;
+
+    /** Whether disk cache entries may still be stored under their MD5 names */
+    private volatile boolean mDiskKeyMigrationPending;
+
+    /** The warm-up of the memory cache from the disk cache, or null */
+    private volatile MemoryCacheWarmUp mMemoryCacheWarmUp;
+
+    /** The loads in flight, by the key of the object they load */
+    private final ConcurrentHashMap<String, FutureTask<T>> mLoads =
+            new ConcurrentHashMap<String, FutureTask<T>>();
+
     /**
      * Create a new ObjectCache object using the specified parameters.
      * 
@@ -93,6 +291,9 @@ public abstract class ObjectCache<T> {
      */
     private void init(FileCacheParams cacheParams) {
         mCacheParams = cacheParams;
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new Object();
+        }
 
         // Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
@@ -106,9 +307,25 @@ public abstract class ObjectCache<T> {
                     final int fileSize = getFileSize(object) / 1024;
                     return fileSize == 0 ? 1 : fileSize;
                 }
+
+                /**
+                 * Demote evicted objects to the off-heap cache
+                 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, T oldObject, T newObject) {
+                    if (evicted) {
+                        scheduleDemotion(key);
+                    }
+                }
             };
         }
 
+        // Set up off-heap cache
+        if (mCacheParams.offHeapCacheSize > 0) {
+            Log.d(TAG, "Off-heap cache created (size = " + mCacheParams.offHeapCacheSize + ")");
+            mOffHeapCache = new OffHeapCache(mCacheParams.offHeapCacheSize);
+        }
+
         /**
          * By default the disk cache is not initialized here as it should be
          * initialized on a separate thread due to disk access.
@@ -127,7 +344,8 @@ public abstract class ObjectCache<T> {
      */
     public void initDiskCache() {
         // Set up disk cache
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLifecycleLock.writeLock().lock();
+        try {
             if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
                 File diskCacheDir = mCacheParams.diskCacheDir;
                 if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
@@ -136,8 +354,23 @@ public abstract class ObjectCache<T> {
                     }
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1,
+                                    mCacheParams.diskCacheSize, mCacheParams.getDiskCacheParams());
+                            mAsyncDiskLruCache = new AsyncDiskLruCache(mDiskLruCache,
+                                    mCacheParams.diskIoThreads);
                             Log.d(TAG, "Disk cache initialized");
+                            if (mMemoryCache != null && mCacheParams.memCacheWarmUpCount > 0) {
+                                mMemoryCacheWarmUp = new MemoryCacheWarmUp(mAsyncDiskLruCache,
+                                        mCacheParams.memCacheWarmUpCount);
+                                mAsyncDiskLruCache.runBatchWhenIdle(mMemoryCacheWarmUp, null);
+                            }
+                            if (mCacheParams.migrateDiskKeys
+                                    && mCacheParams.diskKeyHash != DISK_KEY_HASH_MD5
+                                    && !new File(diskCacheDir, DISK_KEYS_MIGRATED).exists()) {
+                                mDiskKeyMigrationPending = true;
+                                mAsyncDiskLruCache.runBatchWhenIdle(new DiskKeyMigration(
+                                        mAsyncDiskLruCache, mDiskLruCache.entries()), null);
+                            }
                         } catch (final IOException e) {
                             mCacheParams.diskCacheDir = null;
                             Log.e(TAG, "initDiskCache - " + e);
@@ -145,20 +378,97 @@ public abstract class ObjectCache<T> {
                     }
                 }
             }
+        } finally {
+            mDiskCacheLifecycleLock.writeLock().unlock();
+        }
+        synchronized (mDiskCacheStartLock) {
             mDiskCacheStarting = false;
-            mDiskCacheLock.notifyAll();
+            mDiskCacheStartLock.notifyAll();
         }
+        // write out the objects added while the disk cache was starting
+        scheduleDiskWrites();
     }
 
     /**
-     * Adds a Object to both memory and disk cache.
+     * Whether the disk cache is still being initialized.
+     */
+    private boolean isDiskCacheStarting() {
+        synchronized (mDiskCacheStartLock) {
+            return mDiskCacheStarting;
+        }
+    }
+
+    /**
+     * Waits until the disk cache has been initialized, or has failed to.
+     */
+    private void awaitDiskCacheStarted() {
+        synchronized (mDiskCacheStartLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheStartLock.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the lock of the stripe {@code key} belongs to.
+     */
+    private Object lockFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mKeyLocks[h & (mKeyLocks.length - 1)];
+    }
+
+    /**
+     * Returns the keys of the {@code count} most recently used entries of
+     * {@code diskCache}, least recent first.
+     */
+    private static List<String> mostRecentDiskKeys(DiskLruCache diskCache, int count) {
+        // keep the most recently used entries seen, least recent first out
+        final PriorityQueue<DiskLruCache.EntryInfo> recent =
+                new PriorityQueue<DiskLruCache.EntryInfo>(count + 1, LAST_ACCESS_ORDER);
+        final Iterator<DiskLruCache.EntryInfo> entries = diskCache.entries();
+        while (entries.hasNext()) {
+            recent.add(entries.next());
+            if (recent.size() > count) {
+                recent.poll();
+            }
+        }
+        final List<String> keys = new ArrayList<String>(recent.size());
+        while (!recent.isEmpty()) {
+            keys.add(recent.poll().getKey());
+        }
+        return keys;
+    }
+
+    /** Orders disk cache entries from the least to the most recently used */
+    private static final Comparator<DiskLruCache.EntryInfo> LAST_ACCESS_ORDER =
+            new Comparator<DiskLruCache.EntryInfo>() {
+                @Override
+                public int compare(DiskLruCache.EntryInfo a, DiskLruCache.EntryInfo b) {
+                    final long x = a.getLastAccessOrder();
+                    final long y = b.getLastAccessOrder();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            };
+
+    /**
+     * Adds a Object to both memory and disk cache. The object is queued to be
+     * written to the disk cache in the background, so this returns once it is
+     * in the memory cache; only if the queue is full does this wait for room.
+     * Objects already queued under the same key are not queued again. While
+     * the disk cache is being initialized, objects are queued until it is up;
+     * those that don't fit in the queue are kept in the memory cache only.
      * 
      * @param data
      *            Unique identifier for the object to store
      * @param object
      *            The object to store
      */
-    public void addObjectToCache(String data, T object) {
+    public void addObjectToCache(final String data, final T object) {
         if (data == null || object == null) {
             return;
         }
@@ -168,40 +478,309 @@ public abstract class ObjectCache<T> {
             mMemoryCache.put(data, object);
         }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
+        // The disk cache is locked while it starts, so don't look at it then
+        if (!isDiskCacheStarting()) {
+            mDiskCacheLifecycleLock.readLock().lock();
+            try {
+                if (mAsyncDiskLruCache == null) {
+                    return;
+                }
+            } finally {
+                mDiskCacheLifecycleLock.readLock().unlock();
+            }
+        }
+
+        // Queue for the disk cache
+        final String key = diskKeyFor(data);
+        synchronized (mDiskWrites) {
+            if (mDiskWrites.containsKey(key)) {
+                return; // queued already
+            }
+            while (mDiskWrites.size() >= mCacheParams.diskWriteQueueSize) {
+                if (isDiskCacheStarting()) {
+                    return; // nothing makes room before the disk cache is up
+                }
+                // the writes are behind, so slow down until there is room
                 try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            addSpecificObjectToCache(object, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                    mDiskWrites.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            mDiskWrites.put(key, new PendingWrite<T>(data, object));
+        }
+        // otherwise initDiskCache() schedules the writes once it is done
+        if (!isDiskCacheStarting()) {
+            scheduleDiskWrites();
+        }
+    }
+
+    /**
+     * Starts writing the queued objects to the disk cache unless that is
+     * under way already, or drops them if there is no disk cache.
+     */
+    private void scheduleDiskWrites() {
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
+            final AsyncDiskLruCache asyncDiskLruCache = mAsyncDiskLruCache;
+            if (asyncDiskLruCache == null) {
+                abandonDiskWrites();
+                return;
+            }
+            synchronized (mDiskWrites) {
+                if (mDiskWritesScheduled || mDiskWrites.isEmpty()) {
+                    return;
+                }
+                mDiskWritesScheduled = true;
+            }
+            try {
+                asyncDiskLruCache.runBatch(new DiskWriteBatch(asyncDiskLruCache),
+                        DISK_WRITE_CALLBACK);
+            } catch (RejectedExecutionException e) {
+                abandonDiskWrites(); // closed meanwhile
+            }
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /** An object waiting to be written to the disk cache */
+    private static final class PendingWrite<T> {
+        final String data;
+        final T object;
+
+        PendingWrite(String data, T object) {
+            this.data = data;
+            this.object = object;
+        }
+    }
+
+    /**
+     * Writes the oldest queued objects to the disk cache, then queues itself
+     * again if more are waiting, so that reads get a turn in between.
+     */
+    private final class DiskWriteBatch implements AsyncDiskLruCache.Batch<Integer> {
+        private final AsyncDiskLruCache mAsyncCache;
+
+        DiskWriteBatch(AsyncDiskLruCache asyncCache) {
+            mAsyncCache = asyncCache;
+        }
+
+        @Override
+        public Integer run(DiskLruCache cache) {
+            int written = 0;
+            for (int i = 0; i < DISK_WRITE_BATCH_SIZE; i++) {
+                final String key;
+                final PendingWrite<T> write;
+                synchronized (mDiskWrites) {
+                    if (mDiskWrites.isEmpty()) {
+                        mDiskWritesScheduled = false;
+                        mDiskWrites.notifyAll();
+                        return written;
+                    }
+                    key = mDiskWrites.keySet().iterator().next();
+                    write = mDiskWrites.get(key);
+                }
+                try {
+                    if (writeToDiskCache(cache, key, write)) {
+                        written++;
                     }
-                } catch (final IOException e) {
+                } catch (IOException e) {
                     Log.e(TAG, "addObjectToCache - " + e);
-                } catch (Exception e) {
+                } catch (RuntimeException e) {
+                    if (cache.isClosed()) {
+                        abandonDiskWrites();
+                        throw e;
+                    }
                     Log.e(TAG, "addObjectToCache - " + e);
                 } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
+                    synchronized (mDiskWrites) {
+                        mDiskWrites.remove(key);
+                        mDiskWrites.notifyAll();
+                    }
+                }
+            }
+            try {
+                mAsyncCache.runBatch(this, DISK_WRITE_CALLBACK);
+            } catch (RejectedExecutionException e) {
+                abandonDiskWrites();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Writes an object to the disk cache unless it is there already.
+     * 
+     * @return true if the object was written
+     */
+    private boolean writeToDiskCache(DiskLruCache cache, String key, PendingWrite<T> write)
+            throws IOException {
+        if (cache.contains(key)) {
+            return false; // without journaling a read of it
+        }
+        final DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            return false; // being written by another thread
+        }
+        try {
+            // the key lets the memory cache be warmed up from the disk cache
+            editor.setMetadata(write.data);
+            synchronized (lockFor(key)) {
+                final OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+                try {
+                    addSpecificObjectToCache(write.object, out);
+                } finally {
+                    out.close();
+                }
+            }
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            editor.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            editor.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues an object evicted from the memory cache to be demoted to the
+     * off-heap cache. Demotions copy the encoded object from the disk cache
+     * once the disk is otherwise idle, so evictions don't encode anything;
+     * objects not on disk by then are not demoted. When the queue is full the
+     * oldest demotion is dropped.
+     */
+    private void scheduleDemotion(String data) {
+        final OffHeapCache offHeapCache = mOffHeapCache;
+        if (offHeapCache == null || offHeapCache.contains(data) || isDiskCacheStarting()) {
+            return;
+        }
+        synchronized (mDemotions) {
+            if (mDemotions.size() >= DEMOTION_QUEUE_SIZE) {
+                final Iterator<String> oldest = mDemotions.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            mDemotions.add(data);
+            if (mDemotionsScheduled) {
+                return;
+            }
+            mDemotionsScheduled = true;
+        }
+        boolean scheduled = false;
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
+            if (mAsyncDiskLruCache != null) {
+                mAsyncDiskLruCache.runBatchWhenIdle(new DemotionBatch(), null);
+                scheduled = true;
+            }
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
+        }
+        if (!scheduled) {
+            abandonDemotions();
+        }
+    }
+
+    /**
+     * Copies the encoded objects of the queued demotions from the disk cache
+     * to the off-heap cache, without counting as uses of the disk entries.
+     */
+    private final class DemotionBatch implements AsyncDiskLruCache.Batch<Void> {
+        @Override
+        public Void run(DiskLruCache cache) {
+            while (true) {
+                final String data;
+                synchronized (mDemotions) {
+                    final Iterator<String> oldest = mDemotions.iterator();
+                    if (!oldest.hasNext()) {
+                        mDemotionsScheduled = false;
+                        return null;
+                    }
+                    data = oldest.next();
+                    oldest.remove();
+                }
+                final OffHeapCache offHeapCache = mOffHeapCache;
+                if (offHeapCache == null || offHeapCache.contains(data)) {
+                    continue;
+                }
+                final String key = diskKeyFor(data);
+                try {
+                    final DiskLruCache.Snapshot snapshot = cache.peek(key);
+                    if (snapshot != null) {
+                        try {
+                            offHeapCache.put(data,
+                                    readFully(snapshot.getInputStream(DISK_CACHE_INDEX)));
+                        } finally {
+                            snapshot.close();
                         }
-                    } catch (IOException e) {
                     }
+                } catch (IOException e) {
+                    Log.e(TAG, "demote - " + e);
+                } catch (IllegalStateException e) {
+                    abandonDemotions(); // the disk cache was closed meanwhile
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the objects waiting to be demoted.
+     */
+    private void abandonDemotions() {
+        synchronized (mDemotions) {
+            mDemotions.clear();
+            mDemotionsScheduled = false;
+        }
+    }
+
+    /**
+     * Drops the objects waiting to be written, waking up callers waiting for
+     * room.
+     */
+    private void abandonDiskWrites() {
+        synchronized (mDiskWrites) {
+            mDiskWrites.clear();
+            mDiskWritesScheduled = false;
+            mDiskWrites.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the objects waiting to be written have been.
+     */
+    private void awaitDiskWrites() {
+        synchronized (mDiskWrites) {
+            while (mDiskWritesScheduled) {
+                try {
+                    mDiskWrites.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
     }
 
+    /** Logs failures to write objects to the disk cache */
+    private static final AsyncDiskLruCache.Callback<Integer> DISK_WRITE_CALLBACK =
+            new AsyncDiskLruCache.Callback<Integer>() {
+                @Override
+                public void onSuccess(Integer written) {
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Log.e(TAG, "addObjectToCache - " + e);
+                }
+            };
+
     /**
      * Adds a Object to both memory and disk cache.
      * 
@@ -231,48 +810,432 @@ public abstract class ObjectCache<T> {
     }
 
     /**
-     * Get from disk cache.
+     * Get from disk cache, or from the off-heap cache in front of it. Objects
+     * found on disk are also put into the off-heap cache. While the disk cache
+     * is being initialized this misses right away, unless
+     * {@link FileCacheParams#waitForDiskCacheOnStart} is set.
      * 
      * @param data
      *            Unique identifier for which item to get
      * @return The object if found in cache, null otherwise
      */
     public T getObjectFromDiskCache(String data) {
-        final String key = hashKeyForDisk(data);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
+        final OffHeapCache offHeapCache = mOffHeapCache;
+        if (offHeapCache != null) {
+            final byte[] bytes = offHeapCache.get(data);
+            if (bytes != null) {
+                Log.d(TAG, "Off-heap cache hit");
+                return getSpecificObjectFromDiskCache(new ByteArrayInputStream(bytes));
+            }
+        }
+
+        final String key = diskKeyFor(data);
+        if (mCacheParams.waitForDiskCacheOnStart) {
+            awaitDiskCacheStarted();
+        } else if (isDiskCacheStarting()) {
+            return null;
+        }
+        T object = getObjectFromDiskCache(data, key, offHeapCache);
+        if (object == null && mDiskKeyMigrationPending) {
+            // the migration may not have moved the entry yet
+            final String md5Key = hashKeyForDisk(data);
+            object = getObjectFromDiskCache(data, md5Key, offHeapCache);
+            if (object != null) {
+                scheduleDiskKeyMigration(data, md5Key);
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Moves the disk cache entry of {@code data} from its MD5 name to its new
+     * name on an I/O thread.
+     */
+    private void scheduleDiskKeyMigration(final String data, final String md5Key) {
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
+            if (mAsyncDiskLruCache != null) {
+                mAsyncDiskLruCache.runBatch(new AsyncDiskLruCache.Batch<Boolean>() {
+                    @Override
+                    public Boolean run(DiskLruCache cache) throws IOException {
+                        return migrateDiskEntry(cache, data, md5Key);
+                    }
+                }, null);
+            }
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile; the entry is moved after the next start
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the disk cache entry {@code md5Key} of {@code data}, as stored,
+     * to the entry's new name, and removes it once the copy is committed.
+     * 
+     * @return true if the entry was moved
+     */
+    private boolean migrateDiskEntry(DiskLruCache cache, String data, String md5Key)
+            throws IOException {
+        final DiskLruCache.Snapshot snapshot = cache.peek(md5Key);
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            final String key = diskKeyFor(data);
+            if (!cache.contains(key)) {
+                final DiskLruCache.Editor editor = cache.edit(key);
+                if (editor == null) {
+                    return false; // being written, so keep the old entry for now
+                }
                 try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
+                    editor.setMetadata(data);
+                    final InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    final OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+                    try {
+                        final byte[] buffer = new byte[4096];
+                        int count;
+                        while ((count = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, count);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    editor.commit();
+                } catch (IOException e) {
+                    editor.abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    editor.abort();
+                    throw e;
                 }
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        Log.d(TAG, "Disk cache hit");
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            final T object = getSpecificObjectFromDiskCache(inputStream);
-                            return object;
+        } finally {
+            snapshot.close();
+        }
+        cache.remove(md5Key);
+        return true;
+    }
+
+    /**
+     * Reads the most recently used objects of the disk cache into the memory
+     * cache once nothing else is queued, a batch at a time, so that the first
+     * requests after a start don't have to wait for the disk. Objects written
+     * before their keys were recorded in the disk cache are skipped. Stops
+     * once cancelled, as the disk cache is cleared or closed.
+     */
+    private final class MemoryCacheWarmUp implements AsyncDiskLruCache.Batch<Void> {
+        private final AsyncDiskLruCache mAsyncCache;
+        private final int mCount;
+        /** The keys to read, least recent first so that the memory cache keeps the order */
+        private List<String> mKeys;
+        private int mNext;
+        private volatile boolean mCancelled;
+
+        MemoryCacheWarmUp(AsyncDiskLruCache asyncCache, int count) {
+            mAsyncCache = asyncCache;
+            mCount = count;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public Void run(DiskLruCache cache) throws IOException {
+            try {
+                if (mCancelled) {
+                    return null;
+                }
+                if (mKeys == null) {
+                    mKeys = mostRecentDiskKeys(cache, mCount);
+                }
+                final int end = Math.min(mKeys.size(), mNext + MEM_CACHE_WARM_UP_BATCH_SIZE);
+                final List<String> keys = mKeys.subList(mNext, end);
+                mNext = end;
+                final Map<String, DiskLruCache.Snapshot> snapshots = cache.getAll(keys);
+                for (String key : keys) {
+                    final DiskLruCache.Snapshot snapshot = snapshots.get(key);
+                    if (snapshot == null) {
+                        continue;
+                    }
+                    try {
+                        final String data = snapshot.getMetadata();
+                        if (!mCancelled && data != null && mMemoryCache.get(data) == null) {
+                            final T object =
+                                    getSpecificObjectFromDiskCache(snapshot, DISK_CACHE_INDEX);
+                            if (object != null) {
+                                mMemoryCache.put(data, object);
+                            }
                         }
+                    } finally {
+                        snapshot.close();
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
+                }
+                if (mNext < mKeys.size() && !mCancelled) {
+                    mAsyncCache.runBatchWhenIdle(this, null);
+                    return null;
+                }
+                if (!mCancelled) {
+                    Log.d(TAG, "Memory cache warmed up");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "warmUpMemoryCache - " + e);
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            } catch (IllegalStateException e) {
+                // the disk cache was closed meanwhile
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stops the warm-up of the memory cache, if still running.
+     */
+    private void cancelMemoryCacheWarmUp() {
+        final MemoryCacheWarmUp warmUp = mMemoryCacheWarmUp;
+        mMemoryCacheWarmUp = null;
+        if (warmUp != null) {
+            warmUp.cancel();
+        }
+    }
+
+    /**
+     * Walks the disk cache once nothing else is queued, a batch at a time,
+     * moving the entries stored under their MD5 names to their new names.
+     * Once done, records it in the disk cache so that later starts skip it.
+     */
+    private final class DiskKeyMigration implements AsyncDiskLruCache.Batch<Void> {
+        private final AsyncDiskLruCache mAsyncCache;
+        private final Iterator<DiskLruCache.EntryInfo> mEntries;
+
+        DiskKeyMigration(AsyncDiskLruCache asyncCache, Iterator<DiskLruCache.EntryInfo> entries) {
+            mAsyncCache = asyncCache;
+            mEntries = entries;
+        }
+
+        @Override
+        public Void run(DiskLruCache cache) throws IOException {
+            try {
+                for (int i = 0; i < DISK_KEY_MIGRATION_BATCH_SIZE && mEntries.hasNext(); i++) {
+                    final String key = mEntries.next().getKey();
+                    final DiskLruCache.Snapshot snapshot = cache.peek(key);
+                    if (snapshot == null) {
+                        continue;
+                    }
+                    final String data = snapshot.getMetadata();
+                    snapshot.close();
+                    if (data != null && key.equals(hashKeyForDisk(data))
+                            && !key.equals(diskKeyFor(data))) {
+                        try {
+                            migrateDiskEntry(cache, data, key);
+                        } catch (IOException e) {
+                            Log.e(TAG, "migrateDiskEntry - " + e);
+                        }
+                    }
+                }
+                if (mEntries.hasNext()) {
+                    mAsyncCache.runBatchWhenIdle(this, null);
+                    return null;
+                }
+
+                final File marker = new File(cache.getDirectory(), DISK_KEYS_MIGRATED);
+                if (!marker.createNewFile() && !marker.exists()) {
+                    throw new IOException("failed to create file: " + marker);
+                }
+                cache.remove(DISK_KEYS_MIGRATED); // the marker of earlier versions
+                mDiskKeyMigrationPending = false;
+                Log.d(TAG, "Disk cache keys migrated");
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile; the migration starts over after the next start
+            } catch (IllegalStateException e) {
+                // the disk cache was closed meanwhile
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the entry {@code key} from the disk cache, putting its encoded
+     * object into the off-heap cache if there is one.
+     */
+    private T getObjectFromDiskCache(String data, String key, OffHeapCache offHeapCache) {
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
+            if (mDiskLruCache != null) {
+                synchronized (lockFor(key)) {
+                    DiskLruCache.Snapshot snapshot = null;
                     try {
-                        if (inputStream != null) {
-                            inputStream.close();
+                        snapshot = mDiskLruCache.get(key);
+                        if (snapshot != null) {
+                            Log.d(TAG, "Disk cache hit");
+                            if (offHeapCache != null) {
+                                final byte[] bytes =
+                                        readFully(snapshot.getInputStream(DISK_CACHE_INDEX));
+                                offHeapCache.put(data, bytes);
+                                return getSpecificObjectFromDiskCache(
+                                        new ByteArrayInputStream(bytes));
+                            }
+                            final T object =
+                                    getSpecificObjectFromDiskCache(snapshot, DISK_CACHE_INDEX);
+                            return object;
+                        }
+                    } catch (final IOException e) {
+                        Log.e(TAG, "getBitmapFromDiskCache - " + e);
+                    } finally {
+                        if (snapshot != null) {
+                            snapshot.close();
                         }
-                    } catch (IOException e) {
                     }
                 }
             }
             return null;
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a stream to its end and closes it.
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads an object that is in neither cache, for example by downloading it.
+     */
+    public interface Loader<T> {
+        /**
+         * @param data
+         *            Unique identifier of the object to load
+         * @return The object, or null if it couldn't be loaded
+         */
+        T load(String data);
+    }
+
+    /**
+     * Gets an object from the memory cache, else from the disk cache, else
+     * from the loader, adding it to the caches it was missing from. Callers
+     * asking for an object that is being got already wait for that to finish
+     * and share its result, rather than reading or loading the object again.
+     * Note that this may include disk and network access so this should not
+     * be executed on the main/UI thread.
+     * 
+     * @param data
+     *            Unique identifier of the object to get
+     * @param loader
+     *            Loads the object if it isn't cached
+     * @return The object, or null if it couldn't be got
+     */
+    public T getOrLoad(final String data, final Loader<T> loader) {
+        T object = getObjectFromMemCache(data);
+        if (object != null) {
+            return object;
+        }
+
+        final FutureTask<T> load = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() {
+                // a load that just finished may have cached it
+                T object = getObjectFromMemCache(data);
+                if (object != null) {
+                    return object;
+                }
+                object = getObjectFromDiskCache(data);
+                if (object != null) {
+                    if (mMemoryCache != null) {
+                        mMemoryCache.put(data, object);
+                    }
+                    return object;
+                }
+                object = loader.load(data);
+                if (object != null) {
+                    addObjectToCache(data, object);
+                }
+                return object;
+            }
+        });
+        FutureTask<T> inFlight = mLoads.putIfAbsent(data, load);
+        if (inFlight == null) {
+            inFlight = load;
+            try {
+                load.run();
+            } finally {
+                mLoads.remove(data, load);
+            }
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
         }
     }
 
+    /**
+     * Reads the given objects from the disk cache in the background, so that
+     * getting them from the disk cache is fast once they are needed, for
+     * example for the items about to be shown in a list. Nothing is read
+     * while the disk cache is being initialized.
+     * 
+     * @param data
+     *            Unique identifiers of the objects to prefetch
+     */
+    public void prefetchFromDiskCache(Collection<String> data) {
+        if (isDiskCacheStarting()) {
+            return;
+        }
+        final List<String> keys = new ArrayList<String>(data.size());
+        for (String item : data) {
+            keys.add(diskKeyFor(item));
+        }
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
+            if (mAsyncDiskLruCache != null) {
+                mAsyncDiskLruCache.prefetch(keys);
+            }
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads an object from a disk cache snapshot. The default implementation
+     * reads it from the snapshot's input stream; subclasses may override it
+     * to read the value through {@link DiskLruCache.Snapshot#getChannel} or
+     * {@link DiskLruCache.Snapshot#map} without copying it to the heap first.
+     * The snapshot is closed by the caller.
+     * 
+     * @param snapshot
+     *            The snapshot of the disk cache entry
+     * @param index
+     *            The index of the value to read
+     * @return The object, or null if it couldn't be read
+     */
+    protected T getSpecificObjectFromDiskCache(DiskLruCache.Snapshot snapshot, int index)
+            throws IOException {
+        return getSpecificObjectFromDiskCache(snapshot.getInputStream(index));
+    }
+
     public abstract T getSpecificObjectFromDiskCache(InputStream inputStream);
 
     /**
@@ -281,13 +1244,33 @@ public abstract class ObjectCache<T> {
      * executed on the main/UI thread.
      */
     public void clearCache() {
+        // so that it doesn't refill the memory cache from the old disk cache
+        cancelMemoryCacheWarmUp();
+        final OffHeapCache offHeapCache = mOffHeapCache;
+        mOffHeapCache = null;
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
             Log.d(TAG, "Memory cache cleared");
         }
+        if (offHeapCache != null) {
+            offHeapCache.evictAll();
+            mOffHeapCache = offHeapCache;
+            Log.d(TAG, "Off-heap cache cleared");
+        }
 
-        synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
+        mDiskCacheLifecycleLock.writeLock().lock();
+        try {
+            synchronized (mDiskCacheStartLock) {
+                mDiskCacheStarting = true;
+            }
+            if (mAsyncDiskLruCache != null) {
+                // pending writes are cleared along with the rest
+                mAsyncDiskLruCache.shutdownNow();
+                mAsyncDiskLruCache = null;
+            }
+            abandonDiskWrites();
+            abandonDemotions();
+            mDiskKeyMigrationPending = false;
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
                     mDiskLruCache.delete();
@@ -298,6 +1281,8 @@ public abstract class ObjectCache<T> {
                 mDiskLruCache = null;
                 initDiskCache();
             }
+        } finally {
+            mDiskCacheLifecycleLock.writeLock().unlock();
         }
     }
 
@@ -307,7 +1292,8 @@ public abstract class ObjectCache<T> {
      * thread.
      */
     public void flush() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLifecycleLock.readLock().lock();
+        try {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
@@ -316,6 +1302,8 @@ public abstract class ObjectCache<T> {
                     Log.e(TAG, "flush - " + e);
                 }
             }
+        } finally {
+            mDiskCacheLifecycleLock.readLock().unlock();
         }
     }
 
@@ -325,7 +1313,15 @@ public abstract class ObjectCache<T> {
      * thread.
      */
     public void close() {
-        synchronized (mDiskCacheLock) {
+        mDiskCacheLifecycleLock.writeLock().lock();
+        try {
+            cancelMemoryCacheWarmUp();
+            if (mAsyncDiskLruCache != null) {
+                // finish pending writes before the disk cache is closed
+                awaitDiskWrites();
+                mAsyncDiskLruCache.shutdown();
+                mAsyncDiskLruCache = null;
+            }
             if (mDiskLruCache != null) {
                 try {
                     if (!mDiskLruCache.isClosed()) {
@@ -337,6 +1333,8 @@ public abstract class ObjectCache<T> {
                     Log.e(TAG, "close - " + e);
                 }
             }
+        } finally {
+            mDiskCacheLifecycleLock.writeLock().unlock();
         }
     }
 
@@ -351,6 +1349,23 @@ public abstract class ObjectCache<T> {
         public boolean clearDiskCacheOnStart = false;
         public boolean initDiskCacheOnCreate = false;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public int diskCacheSegments = DEFAULT_DISK_CACHE_SEGMENTS;
+        public long journalCommitWindowMillis = DEFAULT_JOURNAL_COMMIT_WINDOW_MILLIS;
+        public boolean packedDiskStorage = DEFAULT_PACKED_DISK_STORAGE;
+        public boolean readOptimizedDiskCache = DEFAULT_READ_OPTIMIZED_DISK_CACHE;
+        public boolean shardedDiskLayout = DEFAULT_SHARDED_DISK_LAYOUT;
+        public int diskIoThreads = DEFAULT_DISK_IO_THREADS;
+        public int diskWriteQueueSize = DEFAULT_DISK_WRITE_QUEUE_SIZE;
+        public DiskLruCache.Codec diskCacheCodec = DEFAULT_DISK_CACHE_CODEC;
+        public int diskCacheDurability = DEFAULT_DISK_CACHE_DURABILITY;
+        public int diskCacheEvictionsPerSecond = DEFAULT_DISK_CACHE_EVICTIONS_PER_SECOND;
+        public int memCacheWarmUpCount = DEFAULT_MEM_CACHE_WARM_UP_COUNT;
+        public boolean waitForDiskCacheOnStart = DEFAULT_WAIT_FOR_DISK_CACHE_ON_START;
+        public int offHeapCacheSize = DEFAULT_OFF_HEAP_CACHE_SIZE;
+        public int diskKeyHash = DEFAULT_DISK_KEY_HASH;
+        public boolean migrateDiskKeys = DEFAULT_MIGRATE_DISK_KEYS;
+        public DiskLruCache.EvictionPolicy.Factory diskCacheEvictionPolicy =
+                DEFAULT_DISK_CACHE_EVICTION_POLICY;
 
         public FileCacheParams(Context context) {
             init(getDiskCacheDir(context, DEFAULT_DISK_CACHE_DIR));
@@ -388,6 +1403,25 @@ public abstract class ObjectCache<T> {
             memCacheSize = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
         }
 
+        /**
+         * Get the parameters to open the disk cache with.
+         * 
+         * @return The disk cache parameters
+         */
+        public DiskLruCache.Params getDiskCacheParams() {
+            final DiskLruCache.Params params = new DiskLruCache.Params();
+            params.segmentCount = diskCacheSegments;
+            params.journalCommitWindowMillis = journalCommitWindowMillis;
+            params.packedStorage = packedDiskStorage;
+            params.readOptimized = readOptimizedDiskCache;
+            params.evictionPolicy = diskCacheEvictionPolicy;
+            params.shardedLayout = shardedDiskLayout;
+            params.codec = diskCacheCodec;
+            params.durability = diskCacheDurability;
+            params.evictionsPerSecond = diskCacheEvictionsPerSecond;
+            return params;
+        }
+
     }
 
     /**
@@ -413,31 +1447,22 @@ public abstract class ObjectCache<T> {
 
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable
-     * for using as a disk filename.
+     * for using as a disk filename: the MD5 digest of its UTF-8 bytes, in hex.
      */
     public static String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
+        return KeyHasher.hash(key, KeyHasher.MD5);
     }
 
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+    /**
+     * Get the name the object of {@code data} is stored under in the disk
+     * cache, hashed as {@link FileCacheParams#diskKeyHash} says.
+     * 
+     * @param data
+     *            Unique identifier of the object
+     * @return The disk cache key
+     */
+    protected String diskKeyFor(String data) {
+        return KeyHasher.hash(data, mCacheParams.diskKeyHash);
     }
 
     /**
@@ -0,0 +1,149 @@
+package co.in.threecolors.cache.caching;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps encoded values in direct byte buffers, outside of the Java heap, and
+ * evicts the least recently used ones once its byte budget is used up.
+ *
+ * <p>The buffers are allocated in slabs as they are needed and cut into pages
+ * of {@link #PAGE_SIZE} bytes. A value takes as many pages as it needs, not
+ * necessarily adjacent ones, so pages freed by any value can be reused by any
+ * other without compacting the slabs. Values are copied in and out under the
+ * cache's lock.
+ */
+final class OffHeapCache {
+    static final int PAGE_SIZE = 1024;
+    private static final int PAGES_PER_SLAB = 1024; // 1MB
+
+    /** A value: its length in bytes and the pages holding it, in order. */
+    private static final class Value {
+        final int length;
+        final int[] pages;
+
+        Value(int length, int[] pages) {
+            this.length = length;
+            this.pages = pages;
+        }
+    }
+
+    private final int pageCount;
+    private final ByteBuffer[] slabs;
+    /** Pages of the allocated slabs that hold no value. */
+    private final int[] freePages;
+    private int freePageCount;
+    /** Pages in the allocated slabs; the slabs are allocated in order. */
+    private int allocatedPages;
+    private final LinkedHashMap<String, Value> values =
+            new LinkedHashMap<String, Value>(0, 0.75f, true);
+    private long size;
+
+    /**
+     * @param maxSize the most bytes of values to keep, rounded down to whole
+     *     pages
+     */
+    OffHeapCache(long maxSize) {
+        this.pageCount = (int) Math.min(maxSize / PAGE_SIZE, Integer.MAX_VALUE);
+        this.slabs = new ByteBuffer[(pageCount + PAGES_PER_SLAB - 1) / PAGES_PER_SLAB];
+        this.freePages = new int[pageCount];
+    }
+
+    /**
+     * Returns a copy of the value of {@code key}, or null. The value becomes
+     * the most recently used one.
+     */
+    synchronized byte[] get(String key) {
+        Value value = values.get(key);
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = new byte[value.length];
+        for (int i = 0, offset = 0; offset < bytes.length; i++, offset += PAGE_SIZE) {
+            ByteBuffer slab = seek(value.pages[i]);
+            slab.get(bytes, offset, Math.min(PAGE_SIZE, bytes.length - offset));
+        }
+        return bytes;
+    }
+
+    synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * Sets the value of {@code key}, evicting the least recently used values
+     * until it fits. Values larger than the cache are not kept.
+     */
+    synchronized void put(String key, byte[] bytes) {
+        remove(key);
+        int needed = (bytes.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (needed > pageCount) {
+            return;
+        }
+        Iterator<Map.Entry<String, Value>> eldest = values.entrySet().iterator();
+        while (freePageCount + pageCount - allocatedPages < needed) {
+            Value evicted = eldest.next().getValue();
+            eldest.remove();
+            release(evicted);
+        }
+
+        int[] pages = new int[needed];
+        for (int i = 0, offset = 0; i < needed; i++, offset += PAGE_SIZE) {
+            pages[i] = takePage();
+            ByteBuffer slab = seek(pages[i]);
+            slab.put(bytes, offset, Math.min(PAGE_SIZE, bytes.length - offset));
+        }
+        values.put(key, new Value(bytes.length, pages));
+        size += bytes.length;
+    }
+
+    synchronized void remove(String key) {
+        Value value = values.remove(key);
+        if (value != null) {
+            release(value);
+        }
+    }
+
+    /** Drops all values, and the slabs with them. */
+    synchronized void evictAll() {
+        values.clear();
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = null;
+        }
+        freePageCount = 0;
+        allocatedPages = 0;
+        size = 0;
+    }
+
+    /** Returns the number of bytes of values kept. */
+    synchronized long size() {
+        return size;
+    }
+
+    private int takePage() {
+        if (freePageCount > 0) {
+            return freePages[--freePageCount];
+        }
+        if (allocatedPages % PAGES_PER_SLAB == 0) {
+            int pages = Math.min(PAGES_PER_SLAB, pageCount - allocatedPages);
+            slabs[allocatedPages / PAGES_PER_SLAB] = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+        }
+        return allocatedPages++;
+    }
+
+    private void release(Value value) {
+        for (int page : value.pages) {
+            freePages[freePageCount++] = page;
+        }
+        size -= value.length;
+    }
+
+    /** Returns the slab of {@code page}, positioned at the page. */
+    private ByteBuffer seek(int page) {
+        ByteBuffer slab = slabs[page / PAGES_PER_SLAB];
+        slab.position((page % PAGES_PER_SLAB) * PAGE_SIZE);
+        return slab;
+    }
+}
@@ -0,0 +1,368 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Stores the values of a {@link DiskLruCache} by appending them to a few large
+ * pack files, instead of keeping one file per value.
+ *
+ * <p>A value is addressed by a location, which packs the id of its pack file
+ * and its offset in it into a long. Values are only ever appended; replacing
+ * or removing a value leaves its old bytes behind as garbage. The store keeps
+ * track of the live bytes of every pack so that the cache can compact packs
+ * that have become mostly garbage, by moving their live values to the pack
+ * currently being appended to and deleting them.
+ *
+ * <p>Each pack is opened once, so reading a value doesn't open a file. Streams
+ * hold a reference to their pack, which keeps it open until they are closed
+ * even if the pack is deleted by compaction meanwhile.
+ *
+ * <p>Packs are read and written through their {@link RandomAccessFile}, each
+ * read or write seeking under the pack's lock, rather than through its
+ * {@link java.nio.channels.FileChannel}: interrupting a thread in the middle
+ * of a channel operation closes the channel, which would break the pack for
+ * every reader and writer until the cache is reopened. Interrupted threads,
+ * such as those of cancelled image loads, are common here.
+ */
+final class PackedValueStore implements Closeable {
+    static final String PACK_FILE_PREFIX = "pack.";
+
+    /** Packs with less than this fraction of live bytes are worth compacting. */
+    private static final float COMPACTION_LIVE_RATIO = 0.5f;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final File directory;
+    private final long packFileSize;
+    private final TreeMap<Integer, Pack> packs = new TreeMap<Integer, Pack>();
+    private Pack active;
+    /** The packs appended to since the last {@link #sync}. */
+    private final Set<Pack> unsynced = new HashSet<Pack>();
+
+    PackedValueStore(File directory, long packFileSize) {
+        this.directory = directory;
+        this.packFileSize = packFileSize;
+    }
+
+    static int packId(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static long offset(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    private static long location(int packId, long offset) {
+        return (long) packId << OFFSET_BITS | offset;
+    }
+
+    /**
+     * Returns true if {@code name} is the name of a pack file.
+     */
+    static boolean isPackFile(String name) {
+        if (!name.startsWith(PACK_FILE_PREFIX)) {
+            return false;
+        }
+        try {
+            Integer.parseInt(name.substring(PACK_FILE_PREFIX.length()));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the existing pack files of the directory. Live bytes must then be
+     * registered with {@link #addLive} before packs are compacted or deleted.
+     */
+    synchronized void open() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("not a directory: " + directory);
+        }
+        for (File file : files) {
+            if (isPackFile(file.getName())) {
+                int id = Integer.parseInt(file.getName().substring(PACK_FILE_PREFIX.length()));
+                packs.put(id, new Pack(id, file));
+            }
+        }
+    }
+
+    /**
+     * Registers the value at {@code location} as live, while opening the cache.
+     * Returns false if its pack doesn't exist or is too short to hold it.
+     */
+    synchronized boolean addLive(long location, long length) {
+        Pack pack = packs.get(packId(location));
+        if (pack == null || offset(location) + length > pack.length) {
+            return false;
+        }
+        pack.live += length;
+        return true;
+    }
+
+    /**
+     * Deletes the packs that hold no live values, once the cache is open.
+     */
+    synchronized void deleteUnusedPacks() throws IOException {
+        for (Pack pack : new ArrayList<Pack>(packs.values())) {
+            if (pack.live == 0 && pack != active) {
+                deletePack(pack);
+            }
+        }
+    }
+
+    /**
+     * Appends a value and returns its location.
+     */
+    synchronized long append(byte[] buffer, int offset, int length) throws IOException {
+        if (active == null || active.deleted
+                || (active.length > 0 && active.length + length > packFileSize)) {
+            int id = packs.isEmpty() ? 0 : packs.lastKey() + 1;
+            active = new Pack(id, new File(directory, PACK_FILE_PREFIX + id));
+            packs.put(id, active);
+        }
+        long position = active.length;
+        synchronized (active) {
+            active.randomAccessFile.seek(position);
+            active.randomAccessFile.write(buffer, offset, length);
+        }
+        active.length += length;
+        active.live += length;
+        unsynced.add(active);
+        return location(active.id, position);
+    }
+
+    /**
+     * Syncs the values appended since the last sync to the storage device.
+     */
+    synchronized void sync() throws IOException {
+        for (Pack pack : unsynced) {
+            if (!pack.deleted) {
+                pack.randomAccessFile.getFD().sync();
+            }
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * Copies the value at {@code location} to the active pack, releases the
+     * old copy and returns the new location.
+     */
+    synchronized long move(long location, long length) throws IOException {
+        byte[] buffer = new byte[(int) length];
+        InputStream in = newInputStream(location, length);
+        try {
+            int count = 0;
+            while (count < buffer.length) {
+                int read = in.read(buffer, count, buffer.length - count);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                count += read;
+            }
+        } finally {
+            in.close();
+        }
+        long moved = append(buffer, 0, buffer.length);
+        release(location, length);
+        return moved;
+    }
+
+    /**
+     * Marks the value at {@code location} as garbage. Returns true if its
+     * pack is now worth compacting.
+     */
+    synchronized boolean release(long location, long length) {
+        Pack pack = packs.get(packId(location));
+        if (pack == null) {
+            return false;
+        }
+        pack.live -= length;
+        return isCompactionCandidate(pack);
+    }
+
+    /**
+     * Returns the ids of the packs worth compacting.
+     */
+    synchronized List<Integer> compactionCandidates() {
+        List<Integer> result = new ArrayList<Integer>();
+        for (Pack pack : packs.values()) {
+            if (isCompactionCandidate(pack)) {
+                result.add(pack.id);
+            }
+        }
+        return result;
+    }
+
+    private boolean isCompactionCandidate(Pack pack) {
+        return pack != active && pack.live < pack.length * COMPACTION_LIVE_RATIO;
+    }
+
+    /**
+     * Deletes the pack {@code id} if no live values remain in it.
+     */
+    synchronized void deletePackIfUnused(int id) throws IOException {
+        Pack pack = packs.get(id);
+        if (pack != null && pack.live <= 0 && pack != active) {
+            deletePack(pack);
+        }
+    }
+
+    private void deletePack(Pack pack) throws IOException {
+        packs.remove(pack.id);
+        pack.deleted = true;
+        if (pack.file.exists() && !pack.file.delete()) {
+            throw new IOException("failed to delete " + pack.file);
+        }
+        pack.release();
+    }
+
+    /**
+     * Returns a stream over the value at {@code location}. The stream must be
+     * closed to release its pack.
+     */
+    synchronized InputStream newInputStream(long location, long length) throws IOException {
+        Pack pack = packs.get(packId(location));
+        if (pack == null) {
+            throw new IOException("missing pack for location " + Long.toHexString(location));
+        }
+        pack.refCount++;
+        return new PackInputStream(pack, offset(location), length);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        for (Pack pack : packs.values()) {
+            pack.release();
+        }
+        packs.clear();
+        unsynced.clear();
+        active = null;
+    }
+
+    private final class Pack {
+        private final int id;
+        private final File file;
+        /** Seeked and read or written holding the pack's lock. */
+        private final RandomAccessFile randomAccessFile;
+        private long length;
+        private long live;
+        /** One for the store plus one per open stream. */
+        private int refCount = 1;
+        private boolean deleted;
+
+        private Pack(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.length = randomAccessFile.length();
+        }
+
+        /** Must be called with the store's lock held. */
+        private void release() throws IOException {
+            if (--refCount == 0) {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a value from its pack, seeking to the position of each read.
+     */
+    final class PackInputStream extends InputStream {
+        private final Pack pack;
+        private final long start;
+        private final long end;
+        private long position;
+        private long mark;
+        private boolean closed;
+
+        private PackInputStream(Pack pack, long offset, long length) {
+            this.pack = pack;
+            this.start = offset;
+            this.position = offset;
+            this.mark = offset;
+            this.end = offset + length;
+        }
+
+        /** Returns the file of the pack, which is gone once the pack is deleted. */
+        File packFile() {
+            return pack.file;
+        }
+
+        /** Returns the offset of the value in the pack. */
+        long valueOffset() {
+            return start;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] oneByte = new byte[1];
+            return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (position >= end) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            int chunk = (int) Math.min(length, end - position);
+            int count;
+            synchronized (pack) {
+                pack.randomAccessFile.seek(position);
+                count = pack.randomAccessFile.read(buffer, offset, chunk);
+            }
+            if (count == -1) {
+                throw new EOFException("pack " + pack.id + " is truncated");
+            }
+            position += count;
+            return count;
+        }
+
+        @Override public long skip(long count) {
+            long skipped = Math.max(0, Math.min(count, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override public boolean markSupported() {
+            return true;
+        }
+
+        @Override public void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override public void reset() {
+            position = mark;
+        }
+
+        @Override public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                synchronized (PackedValueStore.this) {
+                    pack.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package co.in.threecolors.cache.caching;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the entries of a {@link DiskLruCache} in the manner of W-TinyLFU.
+ *
+ * <p>Written entries first enter a small window holding the most recently
+ * written entries, about 1% of the cache's maximum size. Entries pushed out
+ * of the window become candidates for the main region of the cache. When the
+ * cache has to evict, it weighs the oldest candidate against the least
+ * recently used entry of the main region, and evicts whichever has been read
+ * or written less often recently according to a {@link FrequencySketch}.
+ * A single pass over many entries that are never seen again thus only cycles
+ * through the window, instead of flushing the entries that keep being used.
+ *
+ * <p>The window absorbs bursts of new entries so that they get a chance to
+ * be used before they have to prove themselves.
+ */
+final class TinyLfuPolicy implements DiskLruCache.EvictionPolicy {
+    /** Used to size the sketch from the cache's maximum size. */
+    private static final int TYPICAL_ENTRY_SIZE = 8 * 1024;
+    private static final int WINDOW_PERCENT = 1;
+
+    private final FrequencySketch sketch;
+    private final long maxWindowSize;
+    private final long maxMainSize;
+
+    /** The sizes of the entries written since the cache was opened. */
+    private final HashMap<String, Long> sizes = new HashMap<String, Long>();
+
+    /** The keys of the entries in the window, least recently used first. */
+    private final LinkedHashMap<String, Boolean> window =
+            new LinkedHashMap<String, Boolean>(0, 0.75f, true);
+    private long windowSize;
+
+    /** The entries that left the window and still have to be weighed, oldest first. */
+    private final LinkedHashSet<String> candidates = new LinkedHashSet<String>();
+
+    /** The size of the entries admitted to the main region. */
+    private long mainSize;
+
+    TinyLfuPolicy(long maxSize) {
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256,
+                maxSize / TYPICAL_ENTRY_SIZE)));
+        this.maxWindowSize = maxSize * WINDOW_PERCENT / 100;
+        this.maxMainSize = maxSize - maxWindowSize;
+    }
+
+    @Override public void recordRead(String key) {
+        sketch.increment(key);
+        window.get(key); // moves it to the tail of the window
+    }
+
+    @Override public void recordWrite(String key, long size) {
+        sketch.increment(key);
+        recordRemoval(key);
+        sizes.put(key, size);
+        window.put(key, Boolean.TRUE);
+        windowSize += size;
+
+        // the most recent entry always stays, however large it is
+        Iterator<String> i = window.keySet().iterator();
+        while (windowSize > maxWindowSize && window.size() > 1) {
+            String oldest = i.next();
+            i.remove();
+            long oldestSize = sizes.get(oldest);
+            windowSize -= oldestSize;
+            if (mainSize + oldestSize <= maxMainSize) {
+                mainSize += oldestSize; // there is room, so no need to weigh it
+            } else {
+                candidates.add(oldest);
+            }
+        }
+    }
+
+    @Override public void recordRemoval(String key) {
+        Long size = sizes.remove(key);
+        if (size == null) {
+            return; // written before the cache was opened
+        }
+        if (window.remove(key) != null) {
+            windowSize -= size;
+        } else if (!candidates.remove(key)) {
+            mainSize -= size;
+        }
+    }
+
+    @Override public String selectVictim(Order evictionOrder) {
+        // look for the victim without running the clock sweep past the window
+        String victim = null;
+        String oldestInWindow = null;
+        Iterator<String> keys = evictionOrder.peek();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (window.containsKey(key)) {
+                if (oldestInWindow == null) {
+                    oldestInWindow = key;
+                }
+            } else if (!candidates.contains(key)) {
+                victim = key;
+                break;
+            }
+        }
+        if (victim == null && oldestInWindow == null) {
+            // every entry was read since the sweep last passed it
+            while (evictionOrder.hasNext()) {
+                String key = evictionOrder.next();
+                if (!window.containsKey(key) && !candidates.contains(key)) {
+                    victim = key;
+                    break;
+                }
+            }
+        }
+
+        // the oldest candidate that isn't being edited
+        String candidate = null;
+        for (String key : candidates) {
+            if (evictionOrder.isEvictable(key)) {
+                candidate = key;
+                break;
+            }
+        }
+        if (candidate == null) {
+            // nothing is waiting to be admitted, so evict from the main region
+            return victim != null ? victim : oldestInWindow;
+        }
+        if (victim == null || sketch.frequency(candidate) <= sketch.frequency(victim)) {
+            return candidate;
+        }
+        // admitted in place of the victim
+        candidates.remove(candidate);
+        mainSize += sizes.get(candidate);
+        return victim;
+    }
+}
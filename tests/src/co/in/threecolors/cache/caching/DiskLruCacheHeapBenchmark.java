@@ -0,0 +1,74 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the heap a {@link DiskLruCache} retains per entry once opened: a
+ * cache of 200k packed entries of one byte each is written and closed, and
+ * the heap in use is compared before and after reopening it.
+ *
+ * <p>It only uses the public API, so it also runs against earlier versions
+ * of the cache. Run it on a desktop JVM with the cache's sources on the
+ * classpath:
+ * <pre>
+ *   java co.in.threecolors.cache.caching.DiskLruCacheHeapBenchmark [directory]
+ * </pre>
+ */
+public final class DiskLruCacheHeapBenchmark {
+    private static final int ENTRY_COUNT = 200000;
+
+    private DiskLruCacheHeapBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0
+                ? args[0] : System.getProperty("java.io.tmpdir"), "DiskLruCacheHeapBenchmark");
+        try {
+            System.out.println("LRU: " + bytesPerEntry(directory, false) + " bytes per entry");
+            System.out.println("read-optimized: " + bytesPerEntry(directory, true)
+                    + " bytes per entry");
+        } finally {
+            if (directory.exists()) {
+                DiskLruCache.deleteContents(directory);
+                directory.delete();
+            }
+        }
+        System.exit(0); // the caches' executors keep their threads for a while
+    }
+
+    private static long bytesPerEntry(File directory, boolean readOptimized)
+            throws IOException {
+        if (directory.exists()) {
+            DiskLruCache.deleteContents(directory);
+        }
+        DiskLruCache.Params params = new DiskLruCache.Params();
+        params.packedStorage = true;
+        params.packFileSize = 64 * 1024 * 1024;
+        params.readOptimized = readOptimized;
+
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, params);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            // keys are hex digests, as ObjectCache makes them
+            DiskLruCache.Editor editor = cache.edit(String.format("%032x", i * 7919L));
+            editor.set(0, "v");
+            editor.commit();
+        }
+        cache.close();
+        cache = null;
+
+        long before = usedHeap();
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, params);
+        long after = usedHeap();
+        cache.close();
+        return (after - before) / ENTRY_COUNT;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,247 @@
+package co.in.threecolors.cache.caching;
+
+import static co.in.threecolors.cache.caching.DiskLruCache.CHECKPOINT_FILE;
+import static co.in.threecolors.cache.caching.DiskLruCache.JOURNAL_FILE;
+import static co.in.threecolors.cache.caching.DiskLruCache.MAGIC;
+import static co.in.threecolors.cache.caching.DiskLruCache.MIGRATION_DIR;
+import static co.in.threecolors.cache.caching.DiskLruCache.VERSION_1;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests reopening a {@link DiskLruCache}: from its binary journal, from a
+ * checkpoint and the journal written after it, from the text journal of
+ * earlier versions, and with a different number of segments.
+ */
+public final class DiskLruCacheTest extends TestCase {
+    private final int appVersion = 100;
+    private File cacheDir;
+    private File journalFile;
+    private DiskLruCache cache;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "DiskLruCacheTest");
+        journalFile = new File(cacheDir, JOURNAL_FILE);
+        deleteRecursively(cacheDir);
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        super.tearDown();
+    }
+
+    public void testReopenKeepsEntries() throws Exception {
+        set("k1", "A", "B");
+        set("k2", "C", "D");
+        DiskLruCache.Editor editor = cache.edit("k3");
+        editor.set(0, "E");
+        editor.set(1, "F");
+        editor.setMetadata("http://example.com/k3");
+        editor.commit();
+        assertTrue(cache.remove("k2"));
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertValue("k1", "A", "B");
+        assertNull(cache.get("k2"));
+        assertValue("k3", "E", "F");
+        DiskLruCache.Snapshot snapshot = cache.get("k3");
+        assertEquals("http://example.com/k3", snapshot.getMetadata());
+        snapshot.close();
+    }
+
+    public void testReopenWritesBinaryJournal() throws Exception {
+        set("k1", "A", "B");
+        cache.close();
+        assertEquals(DiskLruCache.BINARY_MAGIC, readJournalMagic());
+    }
+
+    public void testReopenReplaysJournalWrittenAfterCheckpoint() throws Exception {
+        set("k1", "A", "B");
+        set("k2", "C", "D");
+        cache.close(); // writes a checkpoint
+        assertTrue(new File(cacheDir, CHECKPOINT_FILE).exists());
+
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        set("k3", "E", "F");
+        assertTrue(cache.remove("k1"));
+        cache.flush();
+
+        // open a copy, as the cache would be found after a crash
+        File copyDir = new File(cacheDir.getPath() + ".copy");
+        deleteRecursively(copyDir);
+        copyRecursively(cacheDir, copyDir);
+        DiskLruCache copy = DiskLruCache.open(copyDir, appVersion, 2, Integer.MAX_VALUE);
+        try {
+            assertNull(copy.get("k1"));
+            DiskLruCache.Snapshot snapshot = copy.get("k2");
+            assertEquals("C", snapshot.getString(0));
+            assertEquals("D", snapshot.getString(1));
+            snapshot.close();
+            snapshot = copy.get("k3");
+            assertEquals("E", snapshot.getString(0));
+            assertEquals("F", snapshot.getString(1));
+            snapshot.close();
+        } finally {
+            copy.close();
+            deleteRecursively(copyDir);
+        }
+    }
+
+    public void testUpgradesTextJournal() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        cacheDir.mkdirs();
+        writeFile(new File(cacheDir, "k1.0"), "ABC");
+        writeFile(new File(cacheDir, "k1.1"), "DE");
+        writeFile(new File(cacheDir, "k2.0"), "F");
+        writeFile(new File(cacheDir, "k2.1"), "G");
+        writeTextJournal(
+                "CLEAN k1 3 2",
+                "DIRTY k2",
+                "CLEAN k2 1 1",
+                "DIRTY k3",
+                "READ k1");
+
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertValue("k1", "ABC", "DE");
+        assertValue("k2", "F", "G");
+        assertNull(cache.get("k3"));
+        assertEquals(DiskLruCache.BINARY_MAGIC, readJournalMagic());
+
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertValue("k1", "ABC", "DE");
+        assertValue("k2", "F", "G");
+    }
+
+    public void testTextJournalWithOtherAppVersionIsDiscarded() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        cacheDir.mkdirs();
+        writeFile(new File(cacheDir, "k1.0"), "A");
+        writeFile(new File(cacheDir, "k1.1"), "B");
+        Writer writer = new FileWriter(journalFile);
+        writer.write(MAGIC + "\n" + VERSION_1 + "\n" + (appVersion + 1) + "\n2\n\n");
+        writer.write("CLEAN k1 1 1\n");
+        writer.close();
+
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertFalse(new File(cacheDir, "k1.0").exists());
+    }
+
+    public void testReopenWithSegmentsMigratesInBackground() throws Exception {
+        set("k1", "A", "B");
+        set("k2", "C", "D");
+        set("k3", "E", "F");
+        cache.close();
+        File foreign = new File(cacheDir, "foreign.txt");
+        writeFile(foreign, "not the cache's");
+
+        DiskLruCache.Params params = new DiskLruCache.Params();
+        params.segmentCount = 4;
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE, params);
+        // written and removed while the previous entries may still be copied
+        set("k1", "G", "H");
+        cache.remove("k2");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (new File(cacheDir, MIGRATION_DIR).exists()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        assertValue("k1", "G", "H");
+        assertNull(cache.get("k2"));
+        assertValue("k3", "E", "F");
+        assertTrue(foreign.exists());
+    }
+
+    private void set(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value0);
+        editor.set(1, value1);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String value0, String value1) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            assertEquals(value0, snapshot.getString(0));
+            assertEquals(value1, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private int readJournalMagic() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeTextJournal(String... lines) throws IOException {
+        Writer writer = new FileWriter(journalFile);
+        writer.write(MAGIC + "\n" + VERSION_1 + "\n" + appVersion + "\n2\n\n");
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        writer.close();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+
+    private static void copyRecursively(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (File file : from.listFiles()) {
+                copyRecursively(file, new File(to, file.getName()));
+            }
+            return;
+        }
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
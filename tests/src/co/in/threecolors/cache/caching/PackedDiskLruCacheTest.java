@@ -0,0 +1,131 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests a {@link DiskLruCache} with packed storage, whose values share a few
+ * pack files between all readers and writers.
+ */
+public final class PackedDiskLruCacheTest extends TestCase {
+    private File cacheDir;
+    private DiskLruCache cache;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "PackedDiskLruCacheTest");
+        deleteRecursively(cacheDir);
+        DiskLruCache.Params params = new DiskLruCache.Params();
+        params.packedStorage = true;
+        cache = DiskLruCache.open(cacheDir, 1, 1, Integer.MAX_VALUE, params);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * An interrupted reader, such as the worker of a cancelled image load,
+     * mustn't break the pack for everyone else.
+     */
+    public void testInterruptedReaderLeavesPackUsable() throws Exception {
+        final byte[] value = new byte[256 * 1024];
+        Arrays.fill(value, (byte) 'a');
+        set("k1", value);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override public void run() {
+                interrupt();
+                try {
+                    DiskLruCache.Snapshot snapshot = cache.get("k1");
+                    try {
+                        readFully(snapshot.getInputStream(0));
+                    } finally {
+                        snapshot.close();
+                    }
+                    set("k2", value);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertTrue(Arrays.equals(value, get("k1")));
+        assertTrue(Arrays.equals(value, get("k2")));
+        set("k3", new byte[] { 'b' });
+        assertTrue(Arrays.equals(new byte[] { 'b' }, get("k3")));
+    }
+
+    /** A snapshot's channel belongs to it, so closing it leaves the pack usable. */
+    public void testClosedChannelLeavesPackUsable() throws Exception {
+        set("k1", new byte[] { 'a', 'b', 'c' });
+        set("k2", new byte[] { 'd', 'e' });
+
+        DiskLruCache.Snapshot snapshot = cache.get("k2");
+        FileChannel channel = snapshot.getChannel(0);
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        assertEquals(2, channel.read(buffer, snapshot.getOffset(0)));
+        assertEquals("de", new String(buffer.array(), "US-ASCII"));
+        channel.close();
+        snapshot.close();
+
+        assertTrue(Arrays.equals(new byte[] { 'a', 'b', 'c' }, get("k1")));
+        set("k3", new byte[] { 'f' });
+        assertTrue(Arrays.equals(new byte[] { 'f' }, get("k3")));
+    }
+
+    private void set(String key, byte[] value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+
+    private byte[] get(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            return readFully(snapshot.getInputStream(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,174 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests a {@link DiskLruCache} in read-optimized mode, where reads don't take
+ * the cache's lock, with reads racing edits of the same entries.
+ */
+public final class ReadOptimizedDiskLruCacheTest extends TestCase {
+    private static final int KEY_COUNT = 16;
+    private static final int THREAD_COUNT = 4;
+    private static final int EDITS_PER_KEY = 100;
+
+    private File cacheDir;
+    private DiskLruCache cache;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"),
+                "ReadOptimizedDiskLruCacheTest");
+        deleteRecursively(cacheDir);
+        cache = open(Integer.MAX_VALUE);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Readers must see either no entry or the two values of one commit, never
+     * values of different commits or of an edit in progress.
+     */
+    public void testConcurrentGetAndEdit() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch writersDone = new CountDownLatch(THREAD_COUNT);
+        Thread[] threads = new Thread[THREAD_COUNT * 2];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int first = t * KEY_COUNT / THREAD_COUNT;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int version = 0; version < EDITS_PER_KEY; version++) {
+                            for (int k = first; k < first + KEY_COUNT / THREAD_COUNT; k++) {
+                                set("k" + k, version);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            };
+            threads[THREAD_COUNT + t] = new Thread() {
+                @Override public void run() {
+                    Random random = new Random();
+                    try {
+                        while (writersDone.getCount() > 0 && failure.get() == null) {
+                            String key = "k" + random.nextInt(KEY_COUNT);
+                            DiskLruCache.Snapshot snapshot = cache.get(key);
+                            if (snapshot == null) {
+                                continue;
+                            }
+                            try {
+                                String value0 = snapshot.getString(0);
+                                String value1 = snapshot.getString(1);
+                                assertEquals(key, value0, value1.substring(1));
+                            } finally {
+                                snapshot.close();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        for (int k = 0; k < KEY_COUNT; k++) {
+            assertValue("k" + k, EDITS_PER_KEY - 1);
+        }
+        cache.close();
+        cache = open(Integer.MAX_VALUE);
+        for (int k = 0; k < KEY_COUNT; k++) {
+            assertValue("k" + k, EDITS_PER_KEY - 1);
+        }
+    }
+
+    /** Reads skipped by the lock still count, so read entries outlive unread ones. */
+    public void testReadEntriesSurviveEviction() throws Exception {
+        cache.close();
+        cache = open(10 * 3);
+        for (int k = 0; k < 10; k++) {
+            set("k" + k, 0); // 3 bytes each
+        }
+        for (int k = 0; k < 5; k++) {
+            assertValue("k" + k, 0);
+        }
+        for (int k = 10; k < 15; k++) {
+            set("k" + k, 0);
+        }
+        cache.flush();
+        for (int k = 0; k < 5; k++) {
+            assertValue("k" + k, 0);
+        }
+        assertTrue(cache.size() <= cache.maxSize());
+    }
+
+    /** Reads that skip the lock must still fail once the cache is closed. */
+    public void testGetAfterCloseFails() throws Exception {
+        set("k1", 0);
+        assertValue("k1", 0);
+        cache.close();
+        try {
+            cache.get("k1");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private DiskLruCache open(long maxSize) throws IOException {
+        DiskLruCache.Params params = new DiskLruCache.Params();
+        params.readOptimized = true;
+        // evict no more than needed, so that exactly the unread entries go
+        params.evictionLowWatermark = 1.0f;
+        return DiskLruCache.open(cacheDir, 1, 2, maxSize, params);
+    }
+
+    /** Commits "version" and "-version" as the values of {@code key}. */
+    private void set(String key, int version) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key); // each key has one writer
+        editor.set(0, Integer.toString(version));
+        editor.set(1, "-" + version);
+        editor.commit();
+    }
+
+    private void assertValue(String key, int version) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        try {
+            assertEquals(Integer.toString(version), snapshot.getString(0));
+            assertEquals("-" + version, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
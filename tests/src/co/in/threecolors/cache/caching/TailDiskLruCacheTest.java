@@ -0,0 +1,181 @@
+package co.in.threecolors.cache.caching;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link DiskLruCache#tail}, reading the values of an entry while they
+ * are being written, with each storage layout.
+ */
+public final class TailDiskLruCacheTest extends TestCase {
+    private File cacheDir;
+    private DiskLruCache cache;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "TailDiskLruCacheTest");
+        deleteRecursively(cacheDir);
+        cache = open(false);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        cache.close();
+        deleteRecursively(cacheDir);
+        super.tearDown();
+    }
+
+    public void testTailReadsWhileWriting() throws Exception {
+        tailWhileWriting();
+    }
+
+    public void testTailReadsWhileWritingPacked() throws Exception {
+        cache.close();
+        cache = open(true);
+        tailWhileWriting();
+    }
+
+    private void tailWhileWriting() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        OutputStream out = editor.newOutputStream(0);
+        out.write(new byte[] { 'a', 'b', 'c' });
+        out.flush();
+
+        InputStream in = cache.tail("k1", 0);
+        assertNotNull(in);
+        assertEquals('a', in.read());
+        assertEquals('b', in.read());
+        assertEquals('c', in.read());
+        FutureTask<String> rest = readAllInBackground(in);
+        Thread.sleep(50);
+        assertFalse(rest.isDone()); // waiting for more bytes
+
+        out.write(new byte[] { 'd', 'e', 'f' });
+        out.close();
+        editor.set(1, "B");
+        assertFalse(rest.isDone()); // until the edit is committed
+        editor.commit();
+        assertEquals("def", rest.get(5, TimeUnit.SECONDS));
+        in.close();
+
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertEquals("abcdef", snapshot.getString(0));
+        snapshot.close();
+    }
+
+    public void testTailOfEntryNotBeingEditedIsNull() throws Exception {
+        assertNull(cache.tail("k1", 0));
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "A");
+        editor.set(1, "B");
+        editor.commit();
+        assertNull(cache.tail("k1", 0));
+    }
+
+    public void testTailFailsWhenEditIsAborted() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        OutputStream out = editor.newOutputStream(0);
+        out.write('a');
+        out.flush();
+        InputStream in = cache.tail("k1", 0);
+        assertEquals('a', in.read());
+        FutureTask<String> rest = readAllInBackground(in);
+
+        editor.abort();
+        try {
+            rest.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        in.close();
+    }
+
+    public void testTailFailsWhenValueIsNotWritten() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        editor.set(0, "A");
+        editor.set(1, "B");
+        editor.commit();
+
+        editor = cache.edit("k1");
+        InputStream in = cache.tail("k1", 1);
+        FutureTask<String> rest = readAllInBackground(in);
+        editor.set(0, "C"); // keeps value 1
+        editor.commit();
+        try {
+            rest.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        in.close();
+
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertEquals("C", snapshot.getString(0));
+        assertEquals("B", snapshot.getString(1));
+        snapshot.close();
+    }
+
+    public void testTailSupportsMarkAndReset() throws Exception {
+        DiskLruCache.Editor editor = cache.edit("k1");
+        OutputStream out = editor.newOutputStream(0);
+        out.write(new byte[] { 'a', 'b', 'c' });
+        out.flush();
+
+        InputStream in = cache.tail("k1", 0);
+        assertTrue(in.markSupported());
+        in.mark(Integer.MAX_VALUE);
+        assertEquals('a', in.read());
+        assertEquals('b', in.read());
+        in.reset();
+        out.close();
+        editor.set(1, "B");
+        editor.commit();
+        assertEquals("abc", readAll(in));
+        in.close();
+    }
+
+    private DiskLruCache open(boolean packed) throws IOException {
+        DiskLruCache.Params params = new DiskLruCache.Params();
+        params.packedStorage = packed;
+        return DiskLruCache.open(cacheDir, 1, 2, Integer.MAX_VALUE, params);
+    }
+
+    private static FutureTask<String> readAllInBackground(final InputStream in) {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            @Override public String call() throws IOException {
+                return readAll(in);
+            }
+        });
+        new Thread(task).start();
+        return task;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toString("US-ASCII");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}